@@ -0,0 +1,109 @@
+package de.webtowb.agd.s2.layouts;
+
+/**
+ * The nodes whose forces are recalculated in the current iteration.
+ *
+ * A node moving at least epsilon in an iteration keeps itself and its neighbours active for the next
+ * {@link #FREEZE_AFTER} iterations. All other nodes are frozen: they keep their position and still repulse and attract
+ * the active nodes, but their own forces are not calculated. A frozen node is woken up again as soon as one of its
+ * neighbours moves at least epsilon. Nodes that are not movable are never active.
+ *
+ * The active nodes are listed in increasing order, so iterating over them gives the same result serially and in
+ * parallel.
+ */
+class ActiveSet {
+
+    /**
+     * the number of iterations without a movement of at least epsilon nearby before a node is frozen
+     */
+    private static final int FREEZE_AFTER = 3;
+
+    private final double epsilon;
+    private final boolean[] movable;
+
+    // the active nodes in increasing order
+    final int[] nodes;
+    int count;
+
+    private final boolean[] active;
+    private final boolean[] moving;
+    // the last iteration in which the node or one of its neighbours moved at least epsilon
+    private final int[] awake;
+    private int iteration;
+
+    /**
+     * Creates the set with all movable nodes active
+     *
+     * @param epsilon
+     *            zero never freezes a node
+     * @param movable
+     *            the nodes allowed to move, null if all are
+     */
+    ActiveSet(int nodeCount, double epsilon, boolean[] movable) {
+        this.epsilon = epsilon;
+        this.movable = movable;
+        nodes = new int[nodeCount];
+        active = new boolean[nodeCount];
+        moving = new boolean[nodeCount];
+        awake = new int[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            active[node] = movable == null || movable[node];
+            if (active[node]) {
+                nodes[count++] = node;
+            }
+        }
+    }
+
+    /**
+     * Records the distance an active node moved in the current iteration, different nodes can be recorded
+     * concurrently
+     */
+    void record(int node, double distance) {
+        moving[node] = distance >= epsilon;
+    }
+
+    /**
+     * Moves the state of each node to its new id, see {@link NodeOrder}. The movable nodes are shared with the
+     * {@link SimulationState} and renumbered there.
+     */
+    void renumber(int[] order) {
+        NodeOrder.permute(active, order);
+        NodeOrder.permute(moving, order);
+        NodeOrder.permute(awake, order);
+        count = 0;
+        for (int node = 0; node < active.length; node++) {
+            if (active[node]) {
+                nodes[count++] = node;
+            }
+        }
+    }
+
+    /**
+     * Chooses the active nodes for the next iteration, nodes frozen now are recorded as not moving in convergence
+     */
+    void finishIteration(Adjacency adjacency, ConvergenceMonitor convergence) {
+        iteration++;
+        for (int i = 0; i < count; i++) {
+            int node = nodes[i];
+            if (moving[node]) {
+                awake[node] = iteration;
+                for (int j = adjacency.offset[node]; j < adjacency.offset[node + 1]; j++) {
+                    awake[adjacency.neighbours[j]] = iteration;
+                }
+            }
+        }
+
+        count = 0;
+        for (int node = 0; node < active.length; node++) {
+            boolean wasActive = active[node];
+            active[node] = (movable == null || movable[node]) && iteration - awake[node] < FREEZE_AFTER;
+            if (active[node]) {
+                nodes[count++] = node;
+            } else if (wasActive) {
+                moving[node] = false;
+                convergence.record(node, 0);
+            }
+        }
+    }
+
+}
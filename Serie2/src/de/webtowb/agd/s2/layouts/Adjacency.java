@@ -0,0 +1,227 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+import org.eclipse.elk.graph.ElkConnectableShape;
+import org.eclipse.elk.graph.ElkEdge;
+import org.eclipse.elk.graph.ElkNode;
+
+import de.webtwob.adg.s2.layouts.options.FruchtermanReingoldOptions;
+
+/**
+ * The neighbours of each node in compressed sparse row form, built once per layout run.
+ *
+ * The neighbours of node are neighbours[offset[node]] to neighbours[offset[node + 1] - 1] sorted by id, each with the
+ * number of edges between the two nodes in weights. Edges are undirected, so every edge is listed at both of its
+ * nodes. Edges from a node to itself are left out.
+ *
+ * Each pair of neighbours is also numbered as an edge from the lower to the higher id, edgeOf maps every entry of
+ * neighbours to the number of its pair. This allows calculating each pair once in parallel into edgeForceX and
+ * edgeForceY and adding the results up per node afterwards.
+ */
+class Adjacency {
+
+    final int nodeCount;
+    final int[] offset;
+    final int[] neighbours;
+    final int[] weights;
+
+    // the number of pairs of nodes connected by at least one edge
+    final int edgeCount;
+    final int[] edgeSource;
+    final int[] edgeTarget;
+    final int[] edgeWeight;
+    final int[] edgeOf;
+
+    // the force from edgeSource towards edgeTarget of each edge, written by the edge parallel attraction
+    final double[] edgeForceX;
+    final double[] edgeForceY;
+
+    private Adjacency(int nodeCount, int[] offset, int[] neighbours, int[] weights) {
+        this.nodeCount = nodeCount;
+        this.offset = offset;
+        this.neighbours = neighbours;
+        this.weights = weights;
+        edgeCount = neighbours.length / 2;
+
+        edgeSource = new int[edgeCount];
+        edgeTarget = new int[edgeCount];
+        edgeWeight = new int[edgeCount];
+        edgeOf = new int[neighbours.length];
+        int edge = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            for (int i = offset[node]; i < offset[node + 1]; i++) {
+                if (node < neighbours[i]) {
+                    edgeSource[edge] = node;
+                    edgeTarget[edge] = neighbours[i];
+                    edgeWeight[edge] = weights[i];
+                    edgeOf[i] = edge++;
+                }
+            }
+        }
+        // the lower node of each pair is handled first, so the entry at the higher node can look its edge up
+        for (int node = 0; node < nodeCount; node++) {
+            for (int i = offset[node]; i < offset[node + 1]; i++) {
+                if (node > neighbours[i]) {
+                    edgeOf[i] = edgeOf[find(neighbours[i], node)];
+                }
+            }
+        }
+
+        edgeForceX = new double[edgeCount];
+        edgeForceY = new double[edgeCount];
+    }
+
+    /**
+     * @return the index of neighbour in the neighbours of node, which has to exist
+     */
+    private int find(int node, int neighbour) {
+        return Arrays.binarySearch(neighbours, offset[node], offset[node + 1], neighbour);
+    }
+
+    /**
+     * Collects the edges between the children of layoutGraph, like calculateAttractionSerial used to do each source
+     * target pair of an edge counts as one edge
+     *
+     * {@link FruchtermanReingoldOptions#OUTPUTS_NODE_INDEX} has to be set on all children.
+     */
+    static Adjacency of(ElkNode layoutGraph) {
+        return of(layoutGraph, node -> node.getProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX));
+    }
+
+    /**
+     * Like {@link #of(ElkNode)}, but the id of a child is looked up by its position in the children of layoutGraph,
+     * no property has to be set on the children
+     */
+    static Adjacency ofChildren(ElkNode layoutGraph) {
+        List<ElkNode> children = layoutGraph.getChildren();
+        Map<ElkNode, Integer> index = new HashMap<>(2 * children.size());
+        for (int i = 0; i < children.size(); i++) {
+            index.put(children.get(i), i);
+        }
+        return of(layoutGraph, index::get);
+    }
+
+    private static Adjacency of(ElkNode layoutGraph, ToIntFunction<ElkNode> indexOf) {
+        int count = 0;
+        for (ElkEdge edge : layoutGraph.getContainedEdges()) {
+            for (ElkConnectableShape source : edge.getSources()) {
+                for (ElkConnectableShape target : edge.getTargets()) {
+                    if (isSimulated(layoutGraph, source) && isSimulated(layoutGraph, target) && source != target) {
+                        count++;
+                    }
+                }
+            }
+        }
+
+        long[] keys = new long[2 * count];
+        count = 0;
+        for (ElkEdge edge : layoutGraph.getContainedEdges()) {
+            for (ElkConnectableShape source : edge.getSources()) {
+                for (ElkConnectableShape target : edge.getTargets()) {
+                    if (isSimulated(layoutGraph, source) && isSimulated(layoutGraph, target) && source != target) {
+                        int s = indexOf.applyAsInt((ElkNode) source);
+                        int t = indexOf.applyAsInt((ElkNode) target);
+                        keys[count++] = key(s, t);
+                        keys[count++] = key(t, s);
+                    }
+                }
+            }
+        }
+        return build(layoutGraph.getChildren().size(), keys);
+    }
+
+    /**
+     * @return the adjacency of nodeCount nodes with an edge between source[i] and target[i] for each i below
+     *         edgeCount
+     */
+    static Adjacency of(int nodeCount, int[] source, int[] target, int edgeCount) {
+        long[] keys = new long[2 * edgeCount];
+        int count = 0;
+        for (int edge = 0; edge < edgeCount; edge++) {
+            if (source[edge] != target[edge]) {
+                keys[count++] = key(source[edge], target[edge]);
+                keys[count++] = key(target[edge], source[edge]);
+            }
+        }
+        return build(nodeCount, count == keys.length ? keys : Arrays.copyOf(keys, count));
+    }
+
+    /**
+     * @return the same edges between the nodes renumbered to newId[node]
+     */
+    Adjacency renumber(int[] newId) {
+        int[] newOffset = new int[nodeCount + 1];
+        for (int node = 0; node < nodeCount; node++) {
+            newOffset[newId[node] + 1] = offset[node + 1] - offset[node];
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            newOffset[node + 1] += newOffset[node];
+        }
+
+        // each row as new neighbour id in the upper and weight in the lower half, sorting gives the new row order
+        int[] newNeighbours = new int[neighbours.length];
+        int[] newWeights = new int[weights.length];
+        long[] row = new long[0];
+        for (int node = 0; node < nodeCount; node++) {
+            int degree = offset[node + 1] - offset[node];
+            if (row.length < degree) {
+                row = new long[degree];
+            }
+            for (int i = 0; i < degree; i++) {
+                row[i] = key(newId[neighbours[offset[node] + i]], weights[offset[node] + i]);
+            }
+            Arrays.sort(row, 0, degree);
+            int start = newOffset[newId[node]];
+            for (int i = 0; i < degree; i++) {
+                newNeighbours[start + i] = (int) (row[i] >>> 32);
+                newWeights[start + i] = (int) row[i];
+            }
+        }
+        return new Adjacency(nodeCount, newOffset, newNeighbours, newWeights);
+    }
+
+    static boolean isSimulated(ElkNode layoutGraph, ElkConnectableShape shape) {
+        return shape instanceof ElkNode && ((ElkNode) shape).getParent() == layoutGraph;
+    }
+
+    /**
+     * @return the node in the upper and the neighbour in the lower half, sorting gives the row order
+     */
+    private static long key(int node, int neighbour) {
+        return (long) node << 32 | neighbour;
+    }
+
+    private static Adjacency build(int nodeCount, long[] keys) {
+        Arrays.sort(keys);
+
+        int unique = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                unique++;
+            }
+        }
+
+        int[] offset = new int[nodeCount + 1];
+        int[] neighbours = new int[unique];
+        int[] weights = new int[unique];
+        int entry = -1;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) {
+                entry++;
+                neighbours[entry] = (int) keys[i];
+                offset[(int) (keys[i] >>> 32) + 1]++;
+            }
+            weights[entry]++;
+        }
+        for (int node = 0; node < nodeCount; node++) {
+            offset[node + 1] += offset[node];
+        }
+        return new Adjacency(nodeCount, offset, neighbours, weights);
+    }
+
+}
@@ -0,0 +1,327 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A grid of equally sized sections over the layout frame.
+ *
+ * After setting the cell of each node the grid is rebuilt by sorting the nodes by their cell id, the nodes in a cell
+ * are ordered by their id. Cells are numbered column by column, so the sections of a column next to each other form
+ * one contiguous range of sortedNodes, see {@link #rangeStart(int, int)} and {@link #rangeEnd(int, int)}.
+ *
+ * While there are not many more sections than nodes the start of every section is stored and the nodes are sorted by
+ * a counting sort. Otherwise, e.g. for a large frame and a small optimal distance, only the non empty sections are
+ * stored and looked up by a binary search, so the memory needed grows with the number of nodes instead of the area of
+ * the frame. Both give the same order of nodes.
+ */
+class CellGrid {
+
+    /**
+     * up to this many sections per node the start of every section is stored
+     */
+    private static final int DENSE_SECTIONS_PER_NODE = 4;
+
+    final int columns;
+    final int rows;
+    final double sectionSize;
+
+    final int[] cell;
+    final int[] sortedNodes;
+    // positions in the order of sortedNodes, only filled by gatherPositions
+    double[] sortedX;
+    double[] sortedY;
+    // the same in float precision, only filled by gatherFloatPositions
+    float[] sortedFloatX;
+    float[] sortedFloatY;
+
+    // the ids of the non empty sections in increasing order, the nodes of sections[i] are sortedNodes[sectionStart[i]]
+    // to sortedNodes[sectionStart[i + 1] - 1]
+    final int[] sections;
+    final int[] sectionStart;
+    int sectionCount;
+
+    // indices into sections grouped by color, only filled by groupByColor
+    private int[] colorOrder;
+    private final int[] colorStart = new int[7];
+
+    // the start of every section, null if only the non empty sections are stored
+    private final int[] cellStart;
+    // write position of each cell while sorting
+    private final int[] cursor;
+    // counts and write positions when sorting in parallel, only created when needed
+    private AtomicIntegerArray parallelCursor;
+    // the cell in the upper and the node in the lower half, sorted if only the non empty sections are stored
+    private final long[] keys;
+
+    CellGrid(double frameWidth, double frameHeight, double sectionSize, int nodeCount) {
+        // the cell ids have to fit into an int
+        this.sectionSize = Math.max(sectionSize,
+                Math.sqrt((frameWidth + 1) * (frameHeight + 1) / (Integer.MAX_VALUE / 4)));
+        columns = (int) (frameWidth / this.sectionSize) + 1;
+        rows = (int) (frameHeight / this.sectionSize) + 1;
+        cell = new int[nodeCount];
+        sortedNodes = new int[nodeCount];
+        sections = new int[nodeCount];
+        sectionStart = new int[nodeCount + 1];
+
+        if ((long) columns * rows <= (long) DENSE_SECTIONS_PER_NODE * nodeCount + 1024) {
+            cellStart = new int[columns * rows + 1];
+            cursor = new int[columns * rows];
+            keys = null;
+        } else {
+            cellStart = null;
+            cursor = null;
+            keys = new long[nodeCount];
+        }
+    }
+
+    int getColumn(double x) {
+        return Math.min(columns - 1, Math.max(0, (int) (x / sectionSize)));
+    }
+
+    int getRow(double y) {
+        return Math.min(rows - 1, Math.max(0, (int) (y / sectionSize)));
+    }
+
+    /**
+     * Sets the cell of node to the section containing (x, y), positions outside of the frame are put into the closest
+     * section
+     */
+    void setCell(int node, double x, double y) {
+        cell[node] = getColumn(x) * rows + getRow(y);
+    }
+
+    int getColumnOf(int node) {
+        return cell[node] / rows;
+    }
+
+    int getRowOf(int node) {
+        return cell[node] % rows;
+    }
+
+    /**
+     * @return the index in sortedNodes of the first node in column at firstRow or further down
+     */
+    int rangeStart(int column, int firstRow) {
+        return startOf(column * rows + firstRow);
+    }
+
+    /**
+     * @return the index in sortedNodes after the last node in column at lastRow or further up
+     */
+    int rangeEnd(int column, int lastRow) {
+        return startOf(column * rows + lastRow + 1);
+    }
+
+    /**
+     * @return the index in sortedNodes of the first node in a section with an id of at least id
+     */
+    private int startOf(int id) {
+        if (cellStart != null) {
+            return cellStart[id];
+        }
+        int index = Arrays.binarySearch(sections, 0, sectionCount, id);
+        return sectionStart[index >= 0 ? index : -index - 1];
+    }
+
+    /**
+     * Copies the positions of the nodes in [from, to) of sortedNodes into sortedX and sortedY, so that the positions
+     * of all nodes in a range of cells can be read one after another. Has to be called again after each rebuild.
+     */
+    void gatherPositions(double[] x, double[] y, int from, int to) {
+        for (int i = from; i < to; i++) {
+            sortedX[i] = x[sortedNodes[i]];
+            sortedY[i] = y[sortedNodes[i]];
+        }
+    }
+
+    /**
+     * Like {@link #gatherPositions(double[], double[], int, int)} into sortedFloatX and sortedFloatY
+     */
+    void gatherFloatPositions(double[] x, double[] y, int from, int to) {
+        for (int i = from; i < to; i++) {
+            sortedFloatX[i] = (float) x[sortedNodes[i]];
+            sortedFloatY[i] = (float) y[sortedNodes[i]];
+        }
+    }
+
+    /**
+     * Creates sortedFloatX and sortedFloatY if they do not exist yet
+     */
+    void allocateSortedFloatPositions() {
+        if (sortedFloatX == null) {
+            sortedFloatX = new float[sortedNodes.length];
+            sortedFloatY = new float[sortedNodes.length];
+        }
+    }
+
+    /**
+     * Creates sortedX and sortedY if they do not exist yet
+     */
+    void allocateSortedPositions() {
+        if (sortedX == null) {
+            sortedX = new double[sortedNodes.length];
+            sortedY = new double[sortedNodes.length];
+        }
+    }
+
+    /**
+     * Groups the non empty sections by their color column % 2 + 2 * (row % 3), two sections of the same color are at
+     * least one section apart. The sections of a color are sections[getColorOrder()[i]] for i from
+     * getColorStart(color) to getColorStart(color + 1) - 1. Has to be called again after each rebuild.
+     */
+    void groupByColor() {
+        if (colorOrder == null) {
+            colorOrder = new int[sections.length];
+        }
+        Arrays.fill(colorStart, 0);
+        for (int i = 0; i < sectionCount; i++) {
+            colorStart[colorOf(sections[i]) + 1]++;
+        }
+        for (int color = 0; color < 6; color++) {
+            colorStart[color + 1] += colorStart[color];
+        }
+        int[] position = Arrays.copyOf(colorStart, 6);
+        for (int i = 0; i < sectionCount; i++) {
+            colorOrder[position[colorOf(sections[i])]++] = i;
+        }
+    }
+
+    private int colorOf(int id) {
+        return id / rows % 2 + 2 * (id % rows % 3);
+    }
+
+    int[] getColorOrder() {
+        return colorOrder;
+    }
+
+    int getColorStart(int color) {
+        return colorStart[color];
+    }
+
+    /**
+     * Sorts the nodes by the cell they are in
+     */
+    void rebuild() {
+        if (cellStart == null) {
+            rebuildSparse();
+            return;
+        }
+        Arrays.fill(cellStart, 0);
+        for (int node = 0; node < cell.length; node++) {
+            cellStart[cell[node] + 1]++;
+        }
+        for (int c = 0; c < cursor.length; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        System.arraycopy(cellStart, 0, cursor, 0, cursor.length);
+        // scattering in node order keeps each cell sorted by node id
+        for (int node = 0; node < cell.length; node++) {
+            sortedNodes[cursor[cell[node]]++] = node;
+        }
+        collectSections();
+    }
+
+    /**
+     * Sorts the nodes by the cell they are in, counting and scattering the nodes is done in parallel. The result is the
+     * same as {@link #rebuild()}. If only the non empty sections are stored the keys are built in parallel and sorted
+     * by {@link Arrays#parallelSort(long[])} running in pool.
+     */
+    void rebuild(ForkJoinPool pool, int chunkSize) {
+        if (cellStart == null) {
+            RangeAction.invoke(pool, cell.length, chunkSize, (from, to) -> fillKeys(from, to));
+            // run from a task of pool the sort forks its subtasks into pool instead of the common pool, it only splits
+            // the keys if the common pool has more than one thread
+            if (ForkJoinTask.getPool() == pool) {
+                Arrays.parallelSort(keys);
+            } else {
+                pool.invoke(ForkJoinTask.adapt(() -> Arrays.parallelSort(keys)));
+            }
+            collectSparseSections();
+            return;
+        }
+        if (parallelCursor == null) {
+            parallelCursor = new AtomicIntegerArray(cursor.length);
+        }
+        AtomicIntegerArray counts = parallelCursor;
+
+        RangeAction.invoke(pool, cell.length, chunkSize, (from, to) -> {
+            for (int node = from; node < to; node++) {
+                counts.incrementAndGet(cell[node]);
+            }
+        });
+
+        // prefix sum, afterwards counts holds the first free position of each cell
+        cellStart[0] = 0;
+        for (int c = 0; c < cursor.length; c++) {
+            cellStart[c + 1] = cellStart[c] + counts.get(c);
+            counts.set(c, cellStart[c]);
+        }
+
+        RangeAction.invoke(pool, cell.length, chunkSize, (from, to) -> {
+            for (int node = from; node < to; node++) {
+                sortedNodes[counts.getAndIncrement(cell[node])] = node;
+            }
+        });
+
+        // restore the node id order inside each cell and clear the counts for the next rebuild
+        RangeAction.invoke(pool, cursor.length, chunkSize, (from, to) -> {
+            for (int c = from; c < to; c++) {
+                if (cellStart[c + 1] - cellStart[c] > 1) {
+                    Arrays.sort(sortedNodes, cellStart[c], cellStart[c + 1]);
+                }
+                counts.set(c, 0);
+            }
+        });
+        collectSections();
+    }
+
+    /**
+     * Lists the non empty sections after a counting sort
+     */
+    private void collectSections() {
+        sectionCount = 0;
+        for (int c = 0; c < cursor.length; c++) {
+            if (cellStart[c + 1] > cellStart[c]) {
+                sections[sectionCount] = c;
+                sectionStart[sectionCount++] = cellStart[c];
+            }
+        }
+        sectionStart[sectionCount] = cell.length;
+    }
+
+    /**
+     * Sorts the nodes by cell and node id and lists the non empty sections, without touching the empty ones
+     */
+    private void rebuildSparse() {
+        fillKeys(0, cell.length);
+        Arrays.sort(keys);
+        collectSparseSections();
+    }
+
+    private void fillKeys(int from, int to) {
+        for (int node = from; node < to; node++) {
+            keys[node] = (long) cell[node] << 32 | node;
+        }
+    }
+
+    /**
+     * Lists the non empty sections after sorting the keys
+     */
+    private void collectSparseSections() {
+        sectionCount = 0;
+        for (int i = 0; i < keys.length; i++) {
+            int id = (int) (keys[i] >>> 32);
+            sortedNodes[i] = (int) keys[i];
+            if (sectionCount == 0 || sections[sectionCount - 1] != id) {
+                sections[sectionCount] = id;
+                sectionStart[sectionCount++] = i;
+            }
+        }
+        sectionStart[sectionCount] = cell.length;
+    }
+
+}
@@ -0,0 +1,160 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+
+/**
+ * One step of a multilevel hierarchy, the fine graph is coarsened by collapsing a matching of its edges.
+ *
+ * Nodes are visited in a random order given by the seed, each unmatched node is matched with the unmatched neighbour
+ * that has collapsed the fewest nodes so far, ties are broken by the lower id. A matched pair becomes one coarse node
+ * at the center of the pair, unmatched nodes are copied. Edges between the same coarse nodes are merged into one edge
+ * of weight one and edges inside a coarse node are dropped.
+ */
+class Coarsening {
+
+    final SimulationState fine;
+
+    // the coarse node each fine node was collapsed into and the fine node it was matched with, -1 if unmatched
+    final int[] coarseNode;
+    final int[] partner;
+
+    final int coarseCount;
+    // the number of nodes of the original graph collapsed into each coarse node
+    final int[] coarseWeight;
+
+    private SimulationState coarse;
+
+    private Coarsening(SimulationState fine, int[] coarseNode, int[] partner, int coarseCount, int[] coarseWeight) {
+        this.fine = fine;
+        this.coarseNode = coarseNode;
+        this.partner = partner;
+        this.coarseCount = coarseCount;
+        this.coarseWeight = coarseWeight;
+    }
+
+    /**
+     * Calculates the matching of fine, the coarse graph is created by {@link #buildCoarse(double)}
+     *
+     * @param weight
+     *            the number of original nodes collapsed into each node of fine, null if fine is the original graph
+     */
+    static Coarsening match(SimulationState fine, int[] weight, long seed) {
+        int n = fine.nodeCount;
+        int[] offset = fine.adjacency.offset;
+        int[] neighbours = fine.adjacency.neighbours;
+
+        // the hash of a node in the upper and its id in the lower half, sorting gives the visiting order
+        long[] order = new long[n];
+        for (int node = 0; node < n; node++) {
+            order[node] = (PairJitter.hash(seed, node) & 0xFFFFFFFF00000000L) | node;
+        }
+        Arrays.sort(order);
+
+        int[] coarseNode = new int[n];
+        int[] partner = new int[n];
+        Arrays.fill(coarseNode, -1);
+        Arrays.fill(partner, -1);
+        int coarseCount = 0;
+        for (long entry : order) {
+            int node = (int) entry;
+            if (coarseNode[node] != -1) {
+                continue;
+            }
+            int best = -1;
+            for (int i = offset[node]; i < offset[node + 1]; i++) {
+                int other = neighbours[i];
+                if (coarseNode[other] == -1 && (best == -1 || weightOf(weight, other) < weightOf(weight, best)
+                        || weightOf(weight, other) == weightOf(weight, best) && other < best)) {
+                    best = other;
+                }
+            }
+            coarseNode[node] = coarseCount;
+            if (best != -1) {
+                coarseNode[best] = coarseCount;
+                partner[node] = best;
+                partner[best] = node;
+            }
+            coarseCount++;
+        }
+
+        int[] coarseWeight = new int[coarseCount];
+        for (int node = 0; node < n; node++) {
+            coarseWeight[coarseNode[node]] += weightOf(weight, node);
+        }
+
+        return new Coarsening(fine, coarseNode, partner, coarseCount, coarseWeight);
+    }
+
+    private static int weightOf(int[] weight, int node) {
+        return weight == null ? 1 : weight[node];
+    }
+
+    /**
+     * Creates the coarse graph, each coarse node is placed at the center of the fine nodes collapsed into it
+     *
+     * @param gridSectionSize
+     *            the side length of a grid section on the coarse level
+     */
+    SimulationState buildCoarse(double gridSectionSize) {
+        // each edge as lower id in the upper and higher id in the lower half, sorting puts duplicates next to each other
+        Adjacency adjacency = fine.adjacency;
+        long[] edges = new long[adjacency.edgeCount];
+        int count = 0;
+        for (int node = 0; node < fine.nodeCount; node++) {
+            for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                int source = coarseNode[node];
+                int target = coarseNode[adjacency.neighbours[i]];
+                if (node < adjacency.neighbours[i] && source != target) {
+                    edges[count++] = (long) Math.min(source, target) << 32 | Math.max(source, target);
+                }
+            }
+        }
+        Arrays.sort(edges, 0, count);
+        int unique = 0;
+        for (int edge = 0; edge < count; edge++) {
+            if (unique == 0 || edges[unique - 1] != edges[edge]) {
+                edges[unique++] = edges[edge];
+            }
+        }
+
+        int[] edgeSource = new int[unique];
+        int[] edgeTarget = new int[unique];
+        for (int edge = 0; edge < unique; edge++) {
+            edgeSource[edge] = (int) (edges[edge] >>> 32);
+            edgeTarget[edge] = (int) edges[edge];
+        }
+
+        coarse = SimulationState.create(coarseCount, Adjacency.of(coarseCount, edgeSource, edgeTarget, unique),
+                fine.frameWidth, fine.frameHeight, gridSectionSize);
+
+        for (int node = 0; node < fine.nodeCount; node++) {
+            int target = coarseNode[node];
+            double share = partner[node] == -1 ? 1 : 0.5;
+            coarse.x[target] += fine.x[node] * share;
+            coarse.y[target] += fine.y[node] * share;
+            coarse.width[target] = Math.max(coarse.width[target], fine.width[node]);
+            coarse.height[target] = Math.max(coarse.height[target], fine.height[node]);
+        }
+        return coarse;
+    }
+
+    /**
+     * Places each fine node at the position of its coarse node, the two nodes of a matched pair are moved apart in
+     * opposite directions by less than spread / 2 in each dimension
+     */
+    void interpolate(double spread, long seed, int level) {
+        for (int node = 0; node < fine.nodeCount; node++) {
+            // the coarse level may have been renumbered while it was laid out
+            int target = coarse.currentId(coarseNode[node]);
+            double x = coarse.x[target];
+            double y = coarse.y[target];
+            if (partner[node] != -1) {
+                x += PairJitter.offset(seed, level, node, partner[node], 0) * spread;
+                y += PairJitter.offset(seed, level, node, partner[node], 1) * spread;
+            }
+            fine.x[node] = Math.min(fine.frameWidth, Math.max(0, x));
+            fine.y[node] = Math.min(fine.frameHeight, Math.max(0, y));
+        }
+    }
+
+}
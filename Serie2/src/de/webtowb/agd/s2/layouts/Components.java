@@ -0,0 +1,162 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The connected components of an {@link Adjacency}, numbered in the order of their lowest node id.
+ *
+ * The nodes of component c are nodes[start[c]] to nodes[start[c + 1] - 1] in increasing order, local[node] is the
+ * position of node within its component and can be used as its id in a graph of the component alone. The edges of the
+ * adjacency within component c are edges[edgeStart[c]] to edges[edgeStart[c + 1] - 1].
+ */
+final class Components {
+
+    final int count;
+    final int[] componentOf;
+    final int[] start;
+    final int[] nodes;
+    final int[] local;
+    final int[] edgeStart;
+    final int[] edges;
+
+    private Components(int count, int[] componentOf, int[] start, int[] nodes, int[] local, int[] edgeStart,
+            int[] edges) {
+        this.count = count;
+        this.componentOf = componentOf;
+        this.start = start;
+        this.nodes = nodes;
+        this.local = local;
+        this.edgeStart = edgeStart;
+        this.edges = edges;
+    }
+
+    /**
+     * Finds the components by a breadth first search from each node not reached yet, in node order
+     */
+    static Components of(Adjacency adjacency) {
+        int n = adjacency.nodeCount;
+        int[] componentOf = new int[n];
+        Arrays.fill(componentOf, -1);
+        int[] queue = new int[n];
+        int count = 0;
+        for (int root = 0; root < n; root++) {
+            if (componentOf[root] != -1) {
+                continue;
+            }
+            componentOf[root] = count;
+            queue[0] = root;
+            int queueEnd = 1;
+            for (int head = 0; head < queueEnd; head++) {
+                int node = queue[head];
+                for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                    int neighbour = adjacency.neighbours[i];
+                    if (componentOf[neighbour] == -1) {
+                        componentOf[neighbour] = count;
+                        queue[queueEnd++] = neighbour;
+                    }
+                }
+            }
+            count++;
+        }
+
+        // counting sort by component keeps the nodes and edges of each component in increasing order
+        int[] start = new int[count + 1];
+        for (int node = 0; node < n; node++) {
+            start[componentOf[node] + 1]++;
+        }
+        int[] edgeStart = new int[count + 1];
+        for (int edge = 0; edge < adjacency.edgeCount; edge++) {
+            edgeStart[componentOf[adjacency.edgeSource[edge]] + 1]++;
+        }
+        for (int c = 0; c < count; c++) {
+            start[c + 1] += start[c];
+            edgeStart[c + 1] += edgeStart[c];
+        }
+
+        int[] nodes = new int[n];
+        int[] local = new int[n];
+        int[] cursor = Arrays.copyOf(start, count);
+        for (int node = 0; node < n; node++) {
+            int c = componentOf[node];
+            local[node] = cursor[c] - start[c];
+            nodes[cursor[c]++] = node;
+        }
+        int[] edges = new int[adjacency.edgeCount];
+        cursor = Arrays.copyOf(edgeStart, count);
+        for (int edge = 0; edge < adjacency.edgeCount; edge++) {
+            edges[cursor[componentOf[adjacency.edgeSource[edge]]]++] = edge;
+        }
+        return new Components(count, componentOf, start, nodes, local, edgeStart, edges);
+    }
+
+    /**
+     * @return the number of nodes in component
+     */
+    int size(int component) {
+        return start[component + 1] - start[component];
+    }
+
+    /**
+     * @return the edges of component using local ids, an edge of weight w is listed w times, see
+     *         {@link Adjacency#of(int, int[], int[], int)}
+     */
+    Adjacency adjacencyOf(Adjacency adjacency, int component) {
+        int edgeCount = 0;
+        for (int i = edgeStart[component]; i < edgeStart[component + 1]; i++) {
+            edgeCount += adjacency.edgeWeight[edges[i]];
+        }
+        int[] source = new int[edgeCount];
+        int[] target = new int[edgeCount];
+        int count = 0;
+        for (int i = edgeStart[component]; i < edgeStart[component + 1]; i++) {
+            int edge = edges[i];
+            for (int w = 0; w < adjacency.edgeWeight[edge]; w++) {
+                source[count] = local[adjacency.edgeSource[edge]];
+                target[count] = local[adjacency.edgeTarget[edge]];
+                count++;
+            }
+        }
+        return Adjacency.of(size(component), source, target, edgeCount);
+    }
+
+    /**
+     * Packs boxes into rows, tallest first and ties by index, each row is filled up to the side length of a square
+     * holding all boxes
+     *
+     * @param gap
+     *            the space kept between two boxes
+     * @return the position of the top left corner of box i at offsets[2 * i] and offsets[2 * i + 1]
+     */
+    static double[] pack(double[] width, double[] height, double gap) {
+        int count = width.length;
+        Integer[] order = new Integer[count];
+        double area = 0;
+        double widest = 0;
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+            area += (width[i] + gap) * (height[i] + gap);
+            widest = Math.max(widest, width[i]);
+        }
+        Arrays.sort(order, Comparator.<Integer> comparingDouble(i -> -height[i]).thenComparingInt(i -> i));
+
+        double rowWidth = Math.max(Math.sqrt(area), widest);
+        double[] offsets = new double[2 * count];
+        double x = 0;
+        double y = 0;
+        double rowHeight = 0;
+        for (int i : order) {
+            if (x > 0 && x + width[i] > rowWidth) {
+                x = 0;
+                y += rowHeight + gap;
+                rowHeight = 0;
+            }
+            offsets[2 * i] = x;
+            offsets[2 * i + 1] = y;
+            x += width[i] + gap;
+            rowHeight = Math.max(rowHeight, height[i]);
+        }
+        return offsets;
+    }
+
+}
@@ -0,0 +1,104 @@
+package de.webtowb.agd.s2.layouts;
+
+/**
+ * Decides when the layout has settled.
+ *
+ * Each iteration every node records how far it actually moved, after limiting the displacement by the temperature and
+ * the frame. An iteration counts as settled when the mean movement is below the threshold, the layout has converged
+ * after patience settled iterations in a row. The mean is used rather than the largest movement, as with a constant
+ * temperature a few oscillating nodes always move by the full temperature.
+ *
+ * The movements are stored per node and summed up in node order afterwards, so the result does not depend on how
+ * the nodes were split between threads.
+ */
+class ConvergenceMonitor {
+
+    private final double threshold;
+    private final int patience;
+
+    private final double[] moved;
+    private int settledIterations;
+    private int iterations;
+
+    private double totalDisplacement;
+    private double maxDisplacement;
+
+    /**
+     * @param threshold
+     *            an iteration in which the nodes move less than this on average is settled, zero never converges
+     * @param patience
+     *            the number of settled iterations in a row needed to converge
+     */
+    ConvergenceMonitor(double threshold, int patience, int nodeCount) {
+        this.threshold = threshold;
+        this.patience = Math.max(1, patience);
+        moved = new double[nodeCount];
+    }
+
+    /**
+     * Records the distance node moved in the current iteration, different nodes can be recorded concurrently
+     */
+    void record(int node, double distance) {
+        moved[node] = distance;
+    }
+
+    /**
+     * Moves the recorded movement of each node to its new id, see {@link NodeOrder}
+     */
+    void renumber(int[] order) {
+        NodeOrder.permute(moved, order);
+    }
+
+    /**
+     * Sums up the movements of the current iteration
+     *
+     * @return true if the layout has converged
+     */
+    boolean finishIteration() {
+        double total = 0;
+        double max = 0;
+        for (double distance : moved) {
+            total += distance;
+            max = Math.max(max, distance);
+        }
+        totalDisplacement = total;
+        maxDisplacement = max;
+        iterations++;
+
+        if (total < threshold * moved.length) {
+            settledIterations++;
+        } else {
+            settledIterations = 0;
+        }
+        return settledIterations >= patience;
+    }
+
+    /**
+     * Continues counting the iterations finished by previous, e.g. the monitor of a coarser level
+     */
+    void continueFrom(ConvergenceMonitor previous) {
+        iterations = previous.iterations;
+    }
+
+    /**
+     * @return the number of finished iterations, including those of the monitor this one continues
+     */
+    int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * @return the sum of the distances all nodes moved in the last finished iteration
+     */
+    double getTotalDisplacement() {
+        return totalDisplacement;
+    }
+
+    /**
+     * @return the largest distance a node moved in the last finished iteration
+     */
+    double getMaxDisplacement() {
+        return maxDisplacement;
+    }
+
+}
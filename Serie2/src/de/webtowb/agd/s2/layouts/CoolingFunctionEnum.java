@@ -35,6 +35,21 @@ public enum CoolingFunctionEnum {
             }
         }
 
+    },
+    /**
+     * Each node has its own temperature that adapts to how the node moves, see {@link NodeTemperature}. This returns
+     * the highest temperature a node can reach, which is also the temperature of all nodes in the first iteration.
+     */
+    ADAPTIVE{
+
+        @Override
+        public double temperature(ElkNode layoutGraph, int iteration) {
+            double width = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FRAME_WIDTH);
+            double height = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FRAME_HEIGHT);
+            double scale = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_TEMPERATURE_SCALE);
+            return scale * Math.min(width, height);
+        }
+
     }
     ;
 
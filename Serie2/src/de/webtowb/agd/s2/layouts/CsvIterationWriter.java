@@ -0,0 +1,61 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Writes one line of comma separated values per iteration to a file, the first line names the columns
+ */
+class CsvIterationWriter implements IterationListener, Closeable {
+
+    private final String path;
+    private final BufferedWriter writer;
+
+    /**
+     * Creates or truncates the file at path
+     */
+    CsvIterationWriter(String path) {
+        this.path = path;
+        try {
+            writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the telemetry file " + path, e);
+        }
+        writeLine("iteration,nodeCount,energy,maxDisplacement,meanDisplacement,temperature,repulsionPairs,"
+                + "repulsionNanos,attractionNanos,movementNanos,gridNanos");
+    }
+
+    @Override
+    public synchronized void iterationFinished(IterationStatistics statistics) {
+        writeLine(String.format(Locale.ROOT, "%d,%d,%s,%s,%s,%s,%d,%d,%d,%d,%d", statistics.getIteration(),
+                statistics.getNodeCount(), statistics.getEnergy(), statistics.getMaxDisplacement(),
+                statistics.getMeanDisplacement(), statistics.getTemperature(), statistics.getRepulsionPairs(),
+                statistics.getRepulsionNanos(), statistics.getAttractionNanos(), statistics.getMovementNanos(),
+                statistics.getGridNanos()));
+    }
+
+    private void writeLine(String line) {
+        try {
+            writer.write(line);
+            writer.newLine();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the telemetry file " + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write the telemetry file " + path, e);
+        }
+    }
+
+}
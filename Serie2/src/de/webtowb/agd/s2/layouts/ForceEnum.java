@@ -9,6 +9,9 @@ public enum ForceEnum {
         public double repulsionForce(double distance, double k) {
             return k*k/distance;
         }
+        public double repulsionScale(double k) {
+            return k*k;
+        }
     },
     LINEAR{
 
@@ -21,6 +24,11 @@ public enum ForceEnum {
         public double repulsionForce(double distance, double k) {
             return k/distance;
         }
+
+        @Override
+        public double repulsionScale(double k) {
+            return k;
+        }
         
     };
     
@@ -34,4 +42,9 @@ public enum ForceEnum {
      * */
     public abstract double repulsionForce(double distance, double k);
 
+    /**
+     * The repulsion Force as a scale over the Distance, repulsionForce(distance, k) = repulsionScale(k) / distance
+     * */
+    public abstract double repulsionScale(double k);
+
 }
@@ -1,16 +1,14 @@
 package de.webtowb.agd.s2.layouts;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.ForkJoinTask;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import org.eclipse.elk.core.AbstractLayoutProvider;
 import org.eclipse.elk.core.math.KVector;
+import org.eclipse.elk.core.util.BasicProgressMonitor;
 import org.eclipse.elk.core.util.IElkProgressMonitor;
 import org.eclipse.elk.graph.ElkConnectableShape;
 import org.eclipse.elk.graph.ElkEdge;
@@ -24,40 +22,143 @@ public class FruchtermanReingoldLayoutProvider extends AbstractLayoutProvider {
 
     // used for randomness
     private final Random rand = new Random();
-    // used for deterministic randomness
-    private final Random detRand = new Random(42);
+    // used for deterministic randomness, see PairJitter
+    private long seed = 42;
+    private int currentIteration = 0;
+    // collects the telemetry of the iterations run directly on the ElkNodes, null if no listener is set
+    private Telemetry telemetry = null;
     private RepulsionEnum repulsionMode = RepulsionEnum.RADIUS2K;
     private ForceEnum forceFunctions = ForceEnum.DEFAULT;
     private InitialLayoutEnum initLayout = InitialLayoutEnum.CIRCLE;
     private double C = 1;
+    private double theta = 1;
+    private int repulsionSamples = 16;
     private int iterations = 50;
     private int earlyStop = 0;
+    private double convergenceThreshold = 0;
+    private int convergencePatience = 10;
+    private boolean multilevel = false;
+    private int multilevelMinNodes = 50;
+    private int multilevelRefinement = 30;
+    private boolean separateComponents = false;
     private double width = 1000;
     private double height = 1000;
     private boolean runParallel = true;
+    private boolean primitiveState = false;
+    private boolean blockedRepulsion = false;
+    private boolean symmetricRepulsion = false;
+    private boolean fusedIteration = false;
+    private boolean floatPrecision = false;
+    private int reorderInterval = 0;
+    private int chunkSize = 512;
     private CoolingFunctionEnum coolingFunction = CoolingFunctionEnum.QUENCH_AND_SIMMER;
+    private double adaptiveStopTemperature = 0.05;
+    private boolean freezeSettledNodes = false;
+    private double freezeThreshold = 0.01;
+    private boolean incremental = false;
+    private int incrementalIterations = 20;
+    private int incrementalHops = -1;
+    private int pivotCount = 50;
+    private IterationListener telemetryListener = null;
+    private String telemetryFile = "";
+    private boolean nodeOutputs = true;
+    private String positionFile = "";
+    // the telemetry listener and the CSV file of the current layout run, null if neither is set
+    private IterationListener iterationListener = null;
     
+    /**
+     * a coarse level needs to have at most this fraction of the nodes of the finer level
+     */
+    private static final double MULTILEVEL_MIN_REDUCTION = 0.8;
+
+    /**
+     * a separated component runs at least this many iterations, fewer only if there are fewer iterations at all
+     */
+    private static final int COMPONENT_MIN_ITERATIONS = 10;
+
     private ForkJoinPool pool = new ForkJoinPool();
+    // used on the ElkNodes, each SimulationState has its own
+    private final QuadTree quadTree = new QuadTree();
 
     private double getArea() {
         return width * height;
     }
 
+    /**
+     * @return the optimal distance k between two of nodeCount nodes in our area
+     */
+    private double optimalDistance(int nodeCount) {
+        return C * Math.sqrt(getArea() / nodeCount);
+    }
+
+    /**
+     * @return the optimal distance k between two of nodeCount nodes in the frame of state
+     */
+    private double optimalDistance(SimulationState state, int nodeCount) {
+        return C * Math.sqrt(state.frameWidth * state.frameHeight / nodeCount);
+    }
+
     private void loadOptions(ElkNode layoutGraph) {
         repulsionMode = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_REPULSION_MODE);
         initLayout = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_INIT_LAYOUT);
         C = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_C_PARAMETER);
         iterations = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_ITERATIONS);
         earlyStop = layoutGraph.getProperty(FruchtermanReingoldOptions.DEBUG_STOP_EARLY);
+        convergenceThreshold = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_CONVERGENCE_THRESHOLD);
+        convergencePatience = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_CONVERGENCE_PATIENCE);
+        multilevel = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_MULTILEVEL);
+        multilevelMinNodes = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_MULTILEVEL_MIN_NODES);
+        multilevelRefinement = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_MULTILEVEL_REFINEMENT);
+        separateComponents = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_SEPARATE_COMPONENTS);
         width = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FRAME_WIDTH);
         height = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FRAME_HEIGHT);
         coolingFunction = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_COOLING_FUNCTION);
-        detRand.setSeed(layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_SEED));
+        adaptiveStopTemperature = layoutGraph
+                .getProperty(FruchtermanReingoldOptions.SETTINGS_ADAPTIVE_STOP_TEMPERATURE);
+        seed = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_SEED);
         forceFunctions = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FORCE_FUNCTIONS);
         runParallel = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_PARALLEL);
+        theta = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_BARNES_HUT_THETA);
+        repulsionSamples = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_REPULSION_SAMPLES);
+        primitiveState = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_PRIMITIVE_STATE);
+        blockedRepulsion = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_BLOCKED_REPULSION);
+        symmetricRepulsion = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_SYMMETRIC_REPULSION);
+        fusedIteration = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FUSED_ITERATION);
+        floatPrecision = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FLOAT_PRECISION);
+        reorderInterval = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_REORDER_INTERVAL);
+        freezeSettledNodes = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FREEZE_SETTLED_NODES);
+        freezeThreshold = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_FREEZE_THRESHOLD);
+        incremental = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_INCREMENTAL);
+        incrementalIterations = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_INCREMENTAL_ITERATIONS);
+        incrementalHops = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_INCREMENTAL_HOPS);
+        pivotCount = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_PIVOT_COUNT);
+        chunkSize = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_CHUNK_SIZE);
+        telemetryListener = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_TELEMETRY_LISTENER);
+        telemetryFile = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_TELEMETRY_FILE);
+        nodeOutputs = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_NODE_OUTPUTS);
+        positionFile = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_POSITION_FILE);
+
+        int parallelism = layoutGraph.getProperty(FruchtermanReingoldOptions.SETTINGS_PARALLELISM);
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        if (pool.getParallelism() != parallelism) {
+            pool.shutdown();
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    /**
+     * Runs task over [0, size) in chunks of at most chunkSize indices, in parallel if enabled
+     */
+    private void forEachRange(int size, RangeAction.RangeTask task) {
+        if (runParallel) {
+            RangeAction.invoke(pool, size, chunkSize, task);
+        } else {
+            task.run(0, size);
+        }
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void layout(ElkNode layoutGraph, IElkProgressMonitor progressMonitor) {
         progressMonitor.begin("Begin GraphLayout", iterations + 1);
@@ -65,12 +166,78 @@ public class FruchtermanReingoldLayoutProvider extends AbstractLayoutProvider {
         loadOptions(layoutGraph);
 
         // k optimal vertex distance
-        double k = C * Math.sqrt(getArea() / layoutGraph.getChildren().size());
-        List<ElkNode>[][] grid;
+        double k = optimalDistance(layoutGraph.getChildren().size());
+
+        CsvIterationWriter csvWriter = telemetryFile == null || telemetryFile.isEmpty() ? null
+                : new CsvIterationWriter(telemetryFile);
+        iterationListener = combine(telemetryListener, csvWriter);
+        try {
+            if (separateComponents && initLayout != InitialLayoutEnum.KEEP_EXISTING) {
+                layoutComponents(layoutGraph, progressMonitor, k);
+            } else if (multilevel && !isIncremental()) {
+                layoutMultilevel(layoutGraph, progressMonitor, k);
+            } else if (primitiveState || isIncremental()) {
+                layoutPrimitiveState(layoutGraph, progressMonitor, k);
+            } else {
+                layoutElkNodes(layoutGraph, progressMonitor, k);
+            }
+        } finally {
+            iterationListener = null;
+            telemetry = null;
+            if (csvWriter != null) {
+                csvWriter.close();
+            }
+        }
+
+        //set graph size and center subgraph in graph
+        positionGraph(layoutGraph);
+        if (nodeOutputs) {
+            for (ElkNode node : layoutGraph.getChildren()) {
+                node.setProperty(FruchtermanReingoldOptions.OUTPUTS_PLACED, true);
+            }
+        }
+        if (positionFile != null && !positionFile.isEmpty()) {
+            PositionFile.write(positionFile, layoutGraph.getChildren());
+        }
+
+        List<ElkEdge> edges = layoutGraph.getContainedEdges();
+        forEachRange(edges.size(), (from, to) -> {
+            for (int edge = from; edge < to; edge++) {
+                routeEdge(edges.get(edge));
+            }
+        });
 
-        grid = (LinkedList<ElkNode>[][]) new LinkedList<?>[(int) (width / (2 * k)) + 1][(int) (height / (2 * k)) + 1];
+        progressMonitor.done();
+    }
+
+    /**
+     * @return a listener calling both listeners, either may be null
+     */
+    private static IterationListener combine(IterationListener first, IterationListener second) {
+        if (first == null || second == null) {
+            return first == null ? second : first;
+        }
+        return statistics -> {
+            first.iterationFinished(statistics);
+            second.iterationFinished(statistics);
+        };
+    }
+
+    /**
+     * Runs all iterations directly on the ElkNodes and their properties
+     */
+    private void layoutElkNodes(ElkNode layoutGraph, IElkProgressMonitor progressMonitor, double k) {
+        CellGrid grid = new CellGrid(width, height, 2 * k, layoutGraph.getChildren().size());
 
         initSetup(layoutGraph, progressMonitor.subTask(1), grid, k);
+        Adjacency adjacency = Adjacency.of(layoutGraph);
+
+        ConvergenceMonitor convergence = new ConvergenceMonitor(convergenceThreshold * k, convergencePatience,
+                layoutGraph.getChildren().size());
+        NodeTemperature temperature = createTemperature(layoutGraph, layoutGraph.getChildren().size(), k,
+                initLayout == InitialLayoutEnum.PIVOT_MDS);
+        int nodeCount = layoutGraph.getChildren().size();
+        telemetry = iterationListener == null ? null : new Telemetry(iterationListener, nodeCount);
 
         /*
          * Neighbors attract divide into grid boxes, gridBoxes = |V|/4 gridbox side length = 2k = 2 sqrt(WL/|V|) all in
@@ -82,60 +249,473 @@ public class FruchtermanReingoldLayoutProvider extends AbstractLayoutProvider {
             IElkProgressMonitor subTask;
             int iterationSize;
 
-            double temperature;
             if (runParallel) {
                 iterationSize = layoutGraph.getChildren().size() * 4;
                 for (int i = 0; i < iterations - earlyStop; i++) {
                     subTask = progressMonitor.subTask(1);
                     subTask.begin(String.format("Iteration %d", i), iterationSize);
 
-                    temperature = coolingFunction.temperature(layoutGraph, i);
-                    parallelIteration(layoutGraph, subTask, temperature, grid, k, pool);
+                    temperature.schedule(coolingFunction.temperature(layoutGraph, i));
+                    currentIteration = i;
+                    if (telemetry != null) {
+                        telemetry.startIteration(countRepulsionPairs(grid, nodeCount, null, false));
+                    }
+                    parallelIteration(layoutGraph, subTask, temperature, grid, adjacency, k, convergence);
 
                     subTask.done();
+                    boolean finished = finishIteration(convergence, temperature);
+                    if (telemetry != null) {
+                        telemetry.finishIteration(i, convergence, temperature.mean());
+                    }
+                    if (finished) {
+                        break;
+                    }
                 }
             } else {
-                iterationSize = layoutGraph.getChildren().size() * 2 + layoutGraph.getContainedEdges().size();
+                iterationSize = layoutGraph.getChildren().size() * 2 + adjacency.edgeCount;
 
                 for (int i = 0; i < iterations - earlyStop; i++) {
                     subTask = progressMonitor.subTask(1);
                     subTask.begin(String.format("Iteration %d", i), iterationSize);
 
-                    temperature = coolingFunction.temperature(layoutGraph, i);
-                    serialIteration(layoutGraph, subTask, temperature, grid, k);
+                    temperature.schedule(coolingFunction.temperature(layoutGraph, i));
+                    currentIteration = i;
+                    if (telemetry != null) {
+                        telemetry.startIteration(countRepulsionPairs(grid, nodeCount, null, false));
+                    }
+                    serialIteration(layoutGraph, subTask, temperature, grid, adjacency, k, convergence);
 
                     subTask.done();
+                    boolean finished = finishIteration(convergence, temperature);
+                    if (telemetry != null) {
+                        telemetry.finishIteration(i, convergence, temperature.mean());
+                    }
+                    if (finished) {
+                        break;
+                    }
                 }
             }
         }
 
-        //set graph size and center subgraph in graph
-        positionGraph(layoutGraph);
+        storeConvergence(layoutGraph, convergence);
+    }
 
-        if(runParallel) {
-            layoutGraph.getContainedEdges()
-                .parallelStream()
-                .map(edge->((Runnable)()->routeEdge(edge)))
-                .map(pool::submit)
-                .collect(Collectors.toList())
-                .forEach(ForkJoinTask::join);;
-        }else {
-            layoutGraph.getContainedEdges()
-            .stream()
-            .forEach(this::routeEdge);
+    /**
+     * Copies the nodes into a {@link SimulationState}, runs all iterations on it and writes the result back to the
+     * nodes after the last iteration.
+     *
+     * An incremental layout only runs the last incrementalIterations iterations of the cooling schedule, if
+     * incrementalHops is not negative only the nodes at most that many edges away from a new node move. If no child
+     * was placed before there is nothing to refine and the whole schedule is run from the normal temperature.
+     */
+    private void layoutPrimitiveState(ElkNode layoutGraph, IElkProgressMonitor progressMonitor, double k) {
+        IElkProgressMonitor subTask = progressMonitor.subTask(1);
+        subTask.begin("InitPosition", layoutGraph.getChildren().size());
+        boolean[] isNew = initPosition(layoutGraph, k);
+        boolean refine = isIncremental() && isNew != null;
+        SimulationState state = SimulationState.load(layoutGraph, width, height, 2 * k);
+        if (refine && incrementalHops >= 0) {
+            state.movable = withinHops(state.adjacency, isNew, incrementalHops);
         }
+        calculateGrid(state);
+        subTask.done();
 
+        ConvergenceMonitor convergence = new ConvergenceMonitor(convergenceThreshold * k, convergencePatience,
+                state.nodeCount);
+        if (!layoutGraph.getProperty(FruchtermanReingoldOptions.DEBUG_SKIP_LAYOUT)) {
+            int first = refine ? Math.max(0, iterations - incrementalIterations) : 0;
+            runIterations(layoutGraph, progressMonitor, state, k, convergence,
+                    createTemperature(layoutGraph, state.nodeCount, k,
+                            refine || initLayout == InitialLayoutEnum.PIVOT_MDS),
+                    first,
+                    iterations - earlyStop);
+        }
+
+        state.store(nodeOutputs);
+        storeConvergence(layoutGraph, convergence);
+    }
+
+    /**
+     * Loads the nodes into a {@link SimulationState} and lays it out by {@link #runMultilevel}
+     */
+    private void layoutMultilevel(ElkNode layoutGraph, IElkProgressMonitor progressMonitor, double k) {
+        IElkProgressMonitor subTask = progressMonitor.subTask(1);
+        subTask.begin("InitPosition", layoutGraph.getChildren().size());
+        initPosition(layoutGraph, k);
+        SimulationState state = SimulationState.load(layoutGraph, width, height, 2 * k);
+        subTask.done();
+
+        ConvergenceMonitor convergence = runMultilevel(layoutGraph, progressMonitor, state, 0);
+
+        state.store(nodeOutputs);
+        storeConvergence(layoutGraph, convergence);
+    }
+
+    /**
+     * Coarsens state by edge matching until at most multilevelMinNodes nodes are left or it no longer shrinks, lays
+     * out the coarsest graph and then refines each finer level starting from the positions of the coarser one.
+     *
+     * Every level uses its own optimal distance, the coarsest level runs the iterations from first on, finer levels
+     * run the last multilevelRefinement of these iterations of the cooling schedule.
+     *
+     * @return the convergence of state, counting the iterations of all levels
+     */
+    private ConvergenceMonitor runMultilevel(ElkNode layoutGraph, IElkProgressMonitor progressMonitor,
+            SimulationState state, int first) {
+        boolean skipLayout = layoutGraph.getProperty(FruchtermanReingoldOptions.DEBUG_SKIP_LAYOUT);
+        List<Coarsening> hierarchy = new ArrayList<>();
+        if (!skipLayout) {
+            int[] weight = null;
+            while (state.nodeCount > multilevelMinNodes) {
+                Coarsening coarsening = Coarsening.match(state, weight, seed);
+                if (coarsening.coarseCount > state.nodeCount * MULTILEVEL_MIN_REDUCTION) {
+                    // hardly any edges left to collapse, e.g. a star
+                    break;
+                }
+                hierarchy.add(coarsening);
+                weight = coarsening.coarseWeight;
+                state = coarsening.buildCoarse(2 * optimalDistance(state, coarsening.coarseCount));
+            }
+        }
+        double levelK = optimalDistance(state, state.nodeCount);
+        calculateGrid(state);
+
+        ConvergenceMonitor convergence = new ConvergenceMonitor(convergenceThreshold * levelK, convergencePatience,
+                state.nodeCount);
+        if (!skipLayout) {
+            runIterations(layoutGraph, progressMonitor, state, levelK, convergence,
+                    createTemperature(layoutGraph, state.nodeCount, levelK, false), first, iterations - earlyStop);
+
+            for (int level = hierarchy.size() - 1; level >= 0; level--) {
+                Coarsening coarsening = hierarchy.get(level);
+                state = coarsening.fine;
+                levelK = optimalDistance(state, state.nodeCount);
+                coarsening.interpolate(levelK, seed, level);
+                calculateGrid(state);
+
+                ConvergenceMonitor coarser = convergence;
+                convergence = new ConvergenceMonitor(convergenceThreshold * levelK, convergencePatience,
+                        state.nodeCount);
+                convergence.continueFrom(coarser);
+                runIterations(layoutGraph, progressMonitor, state, levelK, convergence,
+                        createTemperature(layoutGraph, state.nodeCount, levelK, true),
+                        Math.max(first, iterations - multilevelRefinement), iterations - earlyStop);
+            }
+        }
+        return convergence;
+    }
+
+    /**
+     * Lays out each connected component on its own {@link SimulationState} and packs the components into rows
+     * afterwards, so no repulsion is calculated between nodes of different components.
+     *
+     * The initial positions of a component are scaled down into a frame of its own, which gets the share of the area
+     * the component has of the nodes, so k stays the same. The components are laid out at the same time if parallel,
+     * each one deterministically on its own. A component runs the last iterations of the cooling schedule, as many as
+     * its share of the nodes of the largest component, but at least {@link #COMPONENT_MIN_ITERATIONS}.
+     */
+    private void layoutComponents(ElkNode layoutGraph, IElkProgressMonitor progressMonitor, double k) {
+        IElkProgressMonitor subTask = progressMonitor.subTask(1);
+        subTask.begin("Components", layoutGraph.getChildren().size());
+        initPosition(layoutGraph, k);
+        ElkNode[] nodes = layoutGraph.getChildren().toArray(new ElkNode[0]);
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i].setProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX, i);
+        }
+        Adjacency adjacency = Adjacency.of(layoutGraph);
+        Components components = Components.of(adjacency);
+
+        SimulationState[] states = new SimulationState[components.count];
+        int largest = 0;
+        for (int c = 0; c < components.count; c++) {
+            int size = components.size(c);
+            ElkNode[] componentNodes = new ElkNode[size];
+            for (int i = 0; i < size; i++) {
+                componentNodes[i] = nodes[components.nodes[components.start[c] + i]];
+            }
+            double share = Math.sqrt((double) size / nodes.length);
+            states[c] = SimulationState.of(componentNodes, components.adjacencyOf(adjacency, c), width * share,
+                    height * share, 2 * k);
+            fitIntoFrame(states[c]);
+            largest = Math.max(largest, size);
+        }
+        subTask.done();
+
+        ConvergenceMonitor[] convergence = new ConvergenceMonitor[components.count];
+        int componentLargest = largest;
+        RangeAction.RangeTask task = (from, to) -> {
+            for (int c = from; c < to; c++) {
+                convergence[c] = runComponent(layoutGraph, states[c], k, componentLargest);
+            }
+        };
+        subTask = progressMonitor.subTask(iterations);
+        subTask.begin("Simulate Components", components.count);
+        if (runParallel) {
+            RangeAction.invoke(pool, components.count, 1, task);
+        } else {
+            task.run(0, components.count);
+        }
+        subTask.done();
+
+        double[] boxWidth = new double[components.count];
+        double[] boxHeight = new double[components.count];
+        double[] boxX = new double[components.count];
+        double[] boxY = new double[components.count];
+        for (int c = 0; c < components.count; c++) {
+            SimulationState state = states[c];
+            double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+            for (int node = 0; node < state.nodeCount; node++) {
+                minX = Math.min(minX, state.x[node]);
+                minY = Math.min(minY, state.y[node]);
+                maxX = Math.max(maxX, state.x[node] + state.width[node]);
+                maxY = Math.max(maxY, state.y[node] + state.height[node]);
+            }
+            boxX[c] = minX;
+            boxY[c] = minY;
+            boxWidth[c] = maxX - minX;
+            boxHeight[c] = maxY - minY;
+        }
+        double[] offsets = Components.pack(boxWidth, boxHeight, k);
+        for (int c = 0; c < components.count; c++) {
+            SimulationState state = states[c];
+            for (int node = 0; node < state.nodeCount; node++) {
+                state.x[node] += offsets[2 * c] - boxX[c];
+                state.y[node] += offsets[2 * c + 1] - boxY[c];
+            }
+            state.store(nodeOutputs);
+        }
+        storeConvergence(layoutGraph, convergence);
+    }
+
+    /**
+     * Scales the positions of state down into its frame if they do not fit and centers them
+     */
+    private static void fitIntoFrame(SimulationState state) {
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int node = 0; node < state.nodeCount; node++) {
+            minX = Math.min(minX, state.x[node]);
+            minY = Math.min(minY, state.y[node]);
+            maxX = Math.max(maxX, state.x[node]);
+            maxY = Math.max(maxY, state.y[node]);
+        }
+        double scale = 1;
+        if (maxX - minX > state.frameWidth) {
+            scale = state.frameWidth / (maxX - minX);
+        }
+        if ((maxY - minY) * scale > state.frameHeight) {
+            scale = state.frameHeight / (maxY - minY);
+        }
+        for (int node = 0; node < state.nodeCount; node++) {
+            state.x[node] = (state.x[node] - (minX + maxX) / 2) * scale + state.frameWidth / 2;
+            state.y[node] = (state.y[node] - (minY + maxY) / 2) * scale + state.frameHeight / 2;
+        }
+    }
+
+    /**
+     * Runs the iterations of one component, flat or by {@link #runMultilevel}. The component has its own progress
+     * monitor, as components may run at the same time.
+     *
+     * @param largest
+     *            the number of nodes in the largest component
+     * @return the convergence of the component
+     */
+    private ConvergenceMonitor runComponent(ElkNode layoutGraph, SimulationState state, double k, int largest) {
+        IElkProgressMonitor progressMonitor = new BasicProgressMonitor();
+        progressMonitor.begin("Component", iterations);
+        int count = Math.max(Math.min(iterations, COMPONENT_MIN_ITERATIONS),
+                (int) Math.round((double) iterations * state.nodeCount / largest));
+        int first = iterations - count;
+
+        ConvergenceMonitor convergence;
+        if (multilevel) {
+            convergence = runMultilevel(layoutGraph, progressMonitor, state, first);
+        } else {
+            calculateGrid(state);
+            convergence = new ConvergenceMonitor(convergenceThreshold * k, convergencePatience, state.nodeCount);
+            if (!layoutGraph.getProperty(FruchtermanReingoldOptions.DEBUG_SKIP_LAYOUT)) {
+                runIterations(layoutGraph, progressMonitor, state, k, convergence,
+                        createTemperature(layoutGraph, state.nodeCount, k, initLayout == InitialLayoutEnum.PIVOT_MDS),
+                        first, iterations - earlyStop);
+            }
+        }
         progressMonitor.done();
+        return convergence;
     }
 
-    private void routeEdge(ElkEdge edge) {
+    /**
+     * Creates the temperatures for nodeCount nodes. When refining positions that are already good, e.g. those of a
+     * coarser level, a global temperature is limited to k and with the adaptive cooling function every node starts at
+     * k instead of the highest temperature.
+     */
+    private NodeTemperature createTemperature(ElkNode layoutGraph, int nodeCount, double k, boolean refinement) {
+        if (coolingFunction != CoolingFunctionEnum.ADAPTIVE) {
+            return NodeTemperature.global(refinement ? k : Double.POSITIVE_INFINITY);
+        }
+        double maximum = coolingFunction.temperature(layoutGraph, 0);
+        return NodeTemperature.adaptive(nodeCount, refinement ? k : maximum, maximum, adaptiveStopTemperature * k);
+    }
+
+    /**
+     * Renumbers the nodes of state along a Hilbert curve through their positions, so nodes close in the frame are
+     * close in memory, and moves everything kept per node along. The grid is rebuilt for the new ids.
+     */
+    private void renumber(SimulationState state, ConvergenceMonitor convergence, NodeTemperature temperature) {
+        int[] order = NodeOrder.hilbert(state.x, state.y, state.nodeCount, state.frameWidth, state.frameHeight);
+        state.renumber(order);
+        convergence.renumber(order);
+        temperature.renumber(order);
+        if (state.active != null) {
+            state.active.renumber(order);
+        }
+        calculateGrid(state);
+    }
+
+    /**
+     * @param active
+     *            the nodes whose repulsion is calculated, null for all nodes
+     * @param symmetric
+     *            whether each pair of nodes in neighbouring grid sections is visited once
+     * @return the number of node pairs whose repulsion the current iteration calculates or checks against the distance
+     *         limit, -1 for Barnes-Hut
+     */
+    private long countRepulsionPairs(CellGrid grid, int nodeCount, ActiveSet active, boolean symmetric) {
+        int count = active == null ? nodeCount : active.count;
+        switch (repulsionMode) {
+        case BARNES_HUT:
+            return -1;
+        case REPULSE_ALL:
+            return (long) count * Math.max(0, nodeCount - 1);
+        default:
+            long pairs = 0;
+            for (int i = 0; i < count; i++) {
+                int node = active == null ? i : active.nodes[i];
+                int column = grid.getColumnOf(node);
+                int row = grid.getRowOf(node);
+                int minRow = Math.max(0, row - 1);
+                int maxRow = Math.min(grid.rows - 1, row + 1);
+                for (int x = Math.max(0, column - 1); x <= Math.min(grid.columns - 1, column + 1); x++) {
+                    pairs += grid.rangeEnd(x, maxRow) - grid.rangeStart(x, minRow);
+                }
+                // node itself
+                pairs--;
+            }
+            if (symmetric) {
+                pairs /= 2;
+            }
+            if (repulsionMode == RepulsionEnum.SAMPLED) {
+                pairs += (long) count * repulsionSamples;
+            }
+            return pairs;
+        }
+    }
+
+    /**
+     * Adds the time since the last phase ended to phase, if telemetry is collected for the ElkNodes
+     */
+    private void endPhase(int phase) {
+        if (telemetry != null) {
+            telemetry.endPhase(phase);
+        }
+    }
+
+    /**
+     * Adds the time since the last phase ended to phase, if telemetry is collected for state
+     */
+    private static void endPhase(SimulationState state, int phase) {
+        if (state.telemetry != null) {
+            state.telemetry.endPhase(phase);
+        }
+    }
+
+    /**
+     * Finishes the iteration for the convergence monitor
+     *
+     * @return true if the layout has converged or all nodes are cold
+     */
+    private boolean finishIteration(ConvergenceMonitor convergence, NodeTemperature temperature) {
+        boolean converged = convergence.finishIteration();
+        return converged || temperature.isCold();
+    }
+
+    /**
+     * Runs the iterations [first, last) of the cooling schedule on state until convergence. If reorderInterval is
+     * positive the nodes are renumbered along a Hilbert curve before every reorderInterval-th of these iterations.
+     * Each iteration is reported to the iteration listener, if any.
+     */
+    private void runIterations(ElkNode layoutGraph, IElkProgressMonitor progressMonitor, SimulationState state,
+            double k, ConvergenceMonitor convergence, NodeTemperature temperature, int first, int last) {
+        int iterationSize = state.nodeCount * 2 + state.adjacency.edgeCount;
+        state.active = freezeSettledNodes || state.movable != null
+                ? new ActiveSet(state.nodeCount, freezeSettledNodes ? freezeThreshold * k : 0, state.movable)
+                : null;
+        state.telemetry = iterationListener == null ? null : new Telemetry(iterationListener, state.nodeCount);
+        for (int i = first; i < last; i++) {
+            IElkProgressMonitor subTask = progressMonitor.subTask(1);
+            subTask.begin(String.format("Iteration %d", i), iterationSize);
+
+            if (reorderInterval > 0 && (i - first) % reorderInterval == 0) {
+                renumber(state, convergence, temperature);
+            }
+            temperature.schedule(coolingFunction.temperature(layoutGraph, i));
+            state.iteration = i;
+            if (state.telemetry != null) {
+                state.telemetry.startIteration(
+                        countRepulsionPairs(state.grid, state.nodeCount, state.active, isSymmetricRepulsion()));
+            }
+            if (fusedIteration && state.active == null) {
+                fusedIteration(state, subTask, temperature, k, convergence);
+            } else if (runParallel) {
+                parallelIteration(state, subTask, temperature, k, convergence);
+            } else {
+                serialIteration(state, subTask, temperature, k, convergence);
+            }
+
+            subTask.done();
+            if (state.active != null) {
+                state.active.finishIteration(state.adjacency, convergence);
+            }
+            boolean finished = finishIteration(convergence, temperature);
+            if (state.telemetry != null) {
+                state.telemetry.finishIteration(i, convergence, temperature.mean());
+            }
+            if (finished) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reports how many iterations were run and how much the nodes moved in the last one. For separately laid out
+     * components the most iterations any of them ran, the summed and the largest movement are reported.
+     */
+    private void storeConvergence(ElkNode layoutGraph, ConvergenceMonitor... convergence) {
+        int executed = 0;
+        double total = 0;
+        double max = 0;
+        for (ConvergenceMonitor monitor : convergence) {
+            executed = Math.max(executed, monitor.getIterations());
+            total += monitor.getTotalDisplacement();
+            max = Math.max(max, monitor.getMaxDisplacement());
+        }
+        layoutGraph.setProperty(FruchtermanReingoldOptions.OUTPUTS_ITERATIONS_EXECUTED, executed);
+        layoutGraph.setProperty(FruchtermanReingoldOptions.OUTPUTS_TOTAL_DISPLACEMENT, total);
+        layoutGraph.setProperty(FruchtermanReingoldOptions.OUTPUTS_MAX_DISPLACEMENT, max);
+    }
+
+    /**
+     * Routes edge as a straight line between the borders of its first source and target, also used by
+     * {@link StressSgdLayoutProvider}
+     */
+    static void routeEdge(ElkEdge edge) {
         //we ignore all but the first source and target
         ElkNode source = ElkGraphUtil.connectableShapeToNode(edge.getSources().get(0));
         ElkNode target = ElkGraphUtil.connectableShapeToNode(edge.getTargets().get(0));
   
         ElkEdgeSection section = ElkGraphUtil.firstEdgeSection(edge, true, true);
         
-        KVector vector = difference(target,source);
+        KVector vector = new KVector(target.getX() - source.getX(), target.getY() - source.getY());
         
         KVector start = calculateEdgeEndPoint(source, vector);
         KVector end = calculateEdgeEndPoint(target, vector.scale(-1));
@@ -144,7 +724,7 @@ public class FruchtermanReingoldLayoutProvider extends AbstractLayoutProvider {
         
     }
     
-    private KVector calculateEdgeEndPoint(ElkNode node,KVector direction) {
+    private static KVector calculateEdgeEndPoint(ElkNode node,KVector direction) {
         KVector end = new KVector(node.getX()+node.getWidth()/2,node.getY()+node.getHeight()/2);
         
         if(direction.length()==0) {
@@ -164,58 +744,284 @@ public class FruchtermanReingoldLayoutProvider extends AbstractLayoutProvider {
         return end;
     }
 
-    private void serialIteration(
-            ElkNode layoutGraph, IElkProgressMonitor subTask, double temperature, List<ElkNode>[][] grid, double k) {
+    private void serialIteration(ElkNode layoutGraph, IElkProgressMonitor subTask, NodeTemperature temperature,
+            CellGrid grid,
+            Adjacency adjacency, double k, ConvergenceMonitor convergence) {
         layoutGraph.getChildren()
                 .forEach(n -> n.getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR).reset());
 
+        buildQuadTree(layoutGraph);
+        endPhase(Telemetry.GRID);
         calculateRepulsionSerial(layoutGraph, subTask.subTask(layoutGraph.getChildren().size()), grid, k);
-        calculateAttractionSerial(layoutGraph, subTask.subTask(layoutGraph.getContainedEdges().size()), k);
+        endPhase(Telemetry.REPULSION);
+        calculateAttractionSerial(layoutGraph, subTask.subTask(adjacency.edgeCount), adjacency, k);
+        endPhase(Telemetry.ATTRACTION);
 
-        performMovementSerial(layoutGraph, subTask.subTask(layoutGraph.getChildren().size()), temperature);
+        performMovementSerial(layoutGraph, subTask.subTask(layoutGraph.getChildren().size()), temperature,
+                convergence);
+        endPhase(Telemetry.MOVEMENT);
 
-        calculateGrid(layoutGraph, grid, k);
+        calculateGrid(layoutGraph, grid);
+        endPhase(Telemetry.GRID);
     }
 
-    private void parallelIteration(
-            ElkNode layoutGraph, IElkProgressMonitor subTask, double temperature, List<ElkNode>[][] grid, double k,
-            ForkJoinPool pool) {
+    private void parallelIteration(ElkNode layoutGraph, IElkProgressMonitor subTask, NodeTemperature temperature,
+            CellGrid grid,
+            Adjacency adjacency, double k, ConvergenceMonitor convergence) {
 
         IElkProgressMonitor phase1 = subTask.subTask(2 * layoutGraph.getChildren().size());
         IElkProgressMonitor phase2 = subTask.subTask(2 * layoutGraph.getChildren().size());
+        List<ElkNode> nodes = layoutGraph.getChildren();
 
         phase1.begin("Parallel-Phase1", 2*layoutGraph.getChildren().size());
-        layoutGraph.getChildren()
-                .parallelStream()
-                .map(node -> (Runnable) (() -> parallelPhase1(node, phase1, grid, k)))
-                .map(pool::submit) // submit runnable
-                .collect(Collectors.toList())
-                .forEach(ForkJoinTask::join); // wait for Phase 1 to finish
+        buildQuadTree(layoutGraph);
+        endPhase(Telemetry.GRID);
+        // returns once Phase 1 is finished for all chunks
+        forEachRange(nodes.size(), (from, to) -> parallelPhase1(nodes, from, to, phase1, grid, k));
+        endPhase(Telemetry.REPULSION);
+        forEachRange(adjacency.edgeCount, (from, to) -> {
+            for (int edge = from; edge < to; edge++) {
+                calculateEdgeAttraction(nodes, adjacency, edge, k);
+            }
+        });
+        endPhase(Telemetry.ATTRACTION);
         phase1.done();
 
         phase2.begin("Parallel-Phase2", 2*layoutGraph.getChildren().size());
-        layoutGraph.getChildren()
-                .parallelStream()
-                .map(node -> (Runnable) (() -> parallelPhase2(node, phase2, temperature)))
-                .map(pool::submit)
-                .collect(Collectors.toList())
-                .forEach(ForkJoinTask::join);// wait for Phase 2 to finish
-        calculateGrid(layoutGraph, grid, k);
+        // adding up the edge forces of each node is timed with the movement
+        forEachRange(nodes.size(),
+                (from, to) -> parallelPhase2(nodes, from, to, phase2, adjacency, temperature, convergence));
+        endPhase(Telemetry.MOVEMENT);
+        calculateGrid(layoutGraph, grid);
+        endPhase(Telemetry.GRID);
         phase2.done();
 
     }
 
-    private void parallelPhase1(ElkNode current, IElkProgressMonitor subTask, List<ElkNode>[][] grid, double k) {
-        calculateRepulsionParallel(current, grid, k);
-        subTask.worked(1);
-        calculateAttractionParallel(current, k);
-        subTask.worked(1);
+    private void serialIteration(SimulationState state, IElkProgressMonitor subTask, NodeTemperature temperature,
+            double k, ConvergenceMonitor convergence) {
+        buildQuadTree(state);
+        endPhase(state, Telemetry.GRID);
+        boolean symmetric = isSymmetricRepulsion();
+        if (symmetric) {
+            calculateSymmetricRepulsion(state, k);
+        }
+        ActiveSet active = state.active;
+        int count = active == null ? state.nodeCount : active.count;
+        // with telemetry attraction gets a pass of its own to be timed separately, each node only adds to its own
+        // displacement, so the result is the same
+        boolean split = state.telemetry != null;
+        for (int i = 0; i < count; i++) {
+            int node = active == null ? i : active.nodes[i];
+            if (!symmetric) {
+                calculateRepulsion(state, node, k);
+            }
+            if (!split) {
+                calculateAttraction(state, node, k);
+            }
+        }
+        endPhase(state, Telemetry.REPULSION);
+        if (split) {
+            for (int i = 0; i < count; i++) {
+                calculateAttraction(state, active == null ? i : active.nodes[i], k);
+            }
+        }
+        subTask.worked(state.nodeCount + state.adjacency.edgeCount);
+        endPhase(state, Telemetry.ATTRACTION);
+
+        for (int i = 0; i < count; i++) {
+            int node = active == null ? i : active.nodes[i];
+            recordMovement(state, node, performMovement(state, node, temperature, state.x, state.y), convergence);
+        }
+        subTask.worked(state.nodeCount);
+        endPhase(state, Telemetry.MOVEMENT);
+
+        calculateGrid(state);
+        endPhase(state, Telemetry.GRID);
+    }
+
+    /**
+     * Like {@link #serialIteration(SimulationState, IElkProgressMonitor, NodeTemperature, double, ConvergenceMonitor)}
+     * but each
+     * loop is split into chunks. Attraction is calculated once per edge and added up per node in the order of the
+     * adjacency, the result is therefore the same as calculating it from both nodes.
+     */
+    private void parallelIteration(SimulationState state, IElkProgressMonitor subTask, NodeTemperature temperature,
+            double k, ConvergenceMonitor convergence) {
+        buildQuadTree(state);
+        endPhase(state, Telemetry.GRID);
+        if (state.active != null) {
+            parallelActiveIteration(state, subTask, temperature, k, convergence);
+            return;
+        }
+        if (isSymmetricRepulsion()) {
+            calculateSymmetricRepulsion(state, k);
+        } else {
+            forEachRange(state.nodeCount, (from, to) -> {
+                for (int node = from; node < to; node++) {
+                    calculateRepulsion(state, node, k);
+                }
+            });
+        }
+        endPhase(state, Telemetry.REPULSION);
+        forEachRange(state.adjacency.edgeCount, (from, to) -> {
+            for (int edge = from; edge < to; edge++) {
+                calculateEdgeAttraction(state, edge, k);
+            }
+        });
+        subTask.worked(state.nodeCount + state.adjacency.edgeCount);
+        endPhase(state, Telemetry.ATTRACTION);
+
+        Adjacency adjacency = state.adjacency;
+        forEachRange(state.nodeCount, (from, to) -> {
+            for (int node = from; node < to; node++) {
+                // added one after another like calculateAttraction does
+                for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                    int edge = adjacency.edgeOf[i];
+                    if (node < adjacency.neighbours[i]) {
+                        state.dispX[node] += adjacency.edgeForceX[edge];
+                        state.dispY[node] += adjacency.edgeForceY[edge];
+                    } else {
+                        state.dispX[node] -= adjacency.edgeForceX[edge];
+                        state.dispY[node] -= adjacency.edgeForceY[edge];
+                    }
+                }
+                convergence.record(node, performMovement(state, node, temperature, state.x, state.y));
+            }
+        });
+        subTask.worked(state.nodeCount);
+        endPhase(state, Telemetry.MOVEMENT);
+
+        calculateGrid(state);
+        endPhase(state, Telemetry.GRID);
     }
 
-    private void parallelPhase2(
-            ElkNode node, IElkProgressMonitor subTask, double temperature) {
-        performMovementParallel(node, temperature);
-        subTask.worked(1);
+    /**
+     * Like {@link #parallelIteration(SimulationState, IElkProgressMonitor, NodeTemperature, double, ConvergenceMonitor)}
+     * for the active nodes only. Attraction is gathered per node, which gives the same result as calculating it once
+     * per edge.
+     */
+    private void parallelActiveIteration(SimulationState state, IElkProgressMonitor subTask,
+            NodeTemperature temperature, double k, ConvergenceMonitor convergence) {
+        ActiveSet active = state.active;
+        // a separate attraction pass with telemetry like in serialIteration
+        boolean split = state.telemetry != null;
+        forEachRange(active.count, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                calculateRepulsion(state, active.nodes[i], k);
+                if (!split) {
+                    calculateAttraction(state, active.nodes[i], k);
+                }
+            }
+        });
+        endPhase(state, Telemetry.REPULSION);
+        if (split) {
+            forEachRange(active.count, (from, to) -> {
+                for (int i = from; i < to; i++) {
+                    calculateAttraction(state, active.nodes[i], k);
+                }
+            });
+        }
+        subTask.worked(state.nodeCount + state.adjacency.edgeCount);
+        endPhase(state, Telemetry.ATTRACTION);
+
+        forEachRange(active.count, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                int node = active.nodes[i];
+                recordMovement(state, node, performMovement(state, node, temperature, state.x, state.y), convergence);
+            }
+        });
+        subTask.worked(state.nodeCount);
+        endPhase(state, Telemetry.MOVEMENT);
+
+        calculateGrid(state);
+        endPhase(state, Telemetry.GRID);
+    }
+
+    /**
+     * Calculates the forces on each node and moves it in one pass, in parallel if enabled. The positions of the last
+     * iteration are read from state.x and state.y, the moved ones are written to state.nextX and state.nextY together
+     * with the grid cell of the node. So the only barrier of the pass is at its end, after it the buffers are swapped
+     * and only the grid sections are rebuilt. Each node only writes its own entries and attraction is gathered per
+     * node, the result is therefore the same as the one of the other iterations. With telemetry the pass is split into
+     * one for repulsion, attraction and the movement each, so their times can be told apart.
+     */
+    private void fusedIteration(SimulationState state, IElkProgressMonitor subTask, NodeTemperature temperature,
+            double k, ConvergenceMonitor convergence) {
+        buildQuadTree(state);
+        endPhase(state, Telemetry.GRID);
+        boolean symmetric = isSymmetricRepulsion();
+        if (symmetric) {
+            calculateSymmetricRepulsion(state, k);
+        }
+        state.allocateNextPositions();
+        boolean split = state.telemetry != null;
+        forEachRange(state.nodeCount, (from, to) -> {
+            for (int node = from; node < to; node++) {
+                if (!symmetric) {
+                    calculateRepulsion(state, node, k);
+                }
+                if (!split) {
+                    calculateAttraction(state, node, k);
+                    moveToNext(state, node, temperature, convergence);
+                }
+            }
+        });
+        if (split) {
+            endPhase(state, Telemetry.REPULSION);
+            forEachRange(state.nodeCount, (from, to) -> {
+                for (int node = from; node < to; node++) {
+                    calculateAttraction(state, node, k);
+                }
+            });
+            endPhase(state, Telemetry.ATTRACTION);
+            forEachRange(state.nodeCount, (from, to) -> {
+                for (int node = from; node < to; node++) {
+                    moveToNext(state, node, temperature, convergence);
+                }
+            });
+        }
+        subTask.worked(2 * state.nodeCount + state.adjacency.edgeCount);
+        endPhase(state, Telemetry.MOVEMENT);
+
+        state.swapPositions();
+        rebuildGrid(state);
+        endPhase(state, Telemetry.GRID);
+    }
+
+    /**
+     * Moves node by its displacement from state.x and state.y to state.nextX and state.nextY and puts it into the grid
+     * cell of its new position
+     */
+    private void moveToNext(SimulationState state, int node, NodeTemperature temperature,
+            ConvergenceMonitor convergence) {
+        convergence.record(node, performMovement(state, node, temperature, state.nextX, state.nextY));
+        state.grid.setCell(node, state.nextX[node], state.nextY[node]);
+    }
+
+    private void recordMovement(SimulationState state, int node, double distance, ConvergenceMonitor convergence) {
+        convergence.record(node, distance);
+        if (state.active != null) {
+            state.active.record(node, distance);
+        }
+    }
+
+    private void parallelPhase1(
+            List<ElkNode> nodes, int from, int to, IElkProgressMonitor subTask, CellGrid grid, double k) {
+        for (int i = from; i < to; i++) {
+            calculateRepulsionParallel(nodes.get(i), grid, k);
+        }
+        subTask.worked(2 * (to - from));
+    }
+
+    private void parallelPhase2(List<ElkNode> nodes, int from, int to, IElkProgressMonitor subTask,
+            Adjacency adjacency, NodeTemperature temperature, ConvergenceMonitor convergence) {
+        for (int i = from; i < to; i++) {
+            KVector disp = nodes.get(i).getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR);
+            addEdgeAttraction(adjacency, i, disp);
+            convergence.record(i, performMovementParallel(nodes.get(i), i, temperature));
+        }
+        subTask.worked(to - from);
     }
 
     /**
@@ -249,25 +1055,44 @@ public class FruchtermanReingoldLayoutProvider extends AbstractLayoutProvider {
 
     }
 
-    private void initSetup(ElkNode layoutGraph, IElkProgressMonitor subTask, List<ElkNode>[][] grid, double k) {
+    private void initSetup(ElkNode layoutGraph, IElkProgressMonitor subTask, CellGrid grid, double k) {
         subTask.begin("InitPosition", layoutGraph.getChildren().size());
 
-        for (List<ElkNode>[] sub : grid) {
-            Arrays.setAll(sub, notUsed -> new LinkedList<ElkNode>());
+        int index = 0;
+        for (ElkNode node : layoutGraph.getChildren()) {
+            node.setProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX, index++);
         }
 
+        initPosition(layoutGraph, k);
+
+        calculateGrid(layoutGraph, grid);
+
+        subTask.done();
+    }
+
+    /**
+     * Places the nodes according to the initial layout
+     *
+     * @return for KEEP_EXISTING which children had not been placed before, null if nothing was kept, i.e. for the
+     *         other initial layouts and if no child had been placed before
+     */
+    private boolean[] initPosition(ElkNode layoutGraph, double k) {
+        boolean[] isNew = null;
         switch (initLayout) {
-        default: // default to CIRCLE
-        case CIRCLE: // Place nodes on a circle around the center of our area
-            double radius = Math.min(width, height) / 2.0;
-            double angle = Math.PI * 2 / layoutGraph.getChildren().size();
-            int count = 0;
-            for (ElkNode node : layoutGraph.getChildren()) {
-                node.setLocation(Math.sin(angle * count) * radius + width / 2,
-                        Math.cos(angle * count) * radius + height / 2);
-                count++;
+        case PIVOT_MDS:
+            placePivotMds(layoutGraph, k);
+            break;
+        case KEEP_EXISTING:
+            isNew = keepExistingPositions(layoutGraph, k);
+            if (isNew == null) {
+                // nothing placed yet
+                placeCircle(layoutGraph);
             }
             break;
+        default: // default to CIRCLE
+        case CIRCLE:
+            placeCircle(layoutGraph);
+            break;
         case RANDOM_NON_DETERMINISTIC: // place Nodes Randomly
             // might produce two vertices with the same position and same neighbors being stuck together, unlikely
             // though
@@ -277,94 +1102,389 @@ public class FruchtermanReingoldLayoutProvider extends AbstractLayoutProvider {
             }
             break;
         }
+        return isNew;
+    }
 
-        calculateGrid(layoutGraph, grid, k);
+    /**
+     * Places the nodes on a circle around the center of our area
+     */
+    private void placeCircle(ElkNode layoutGraph) {
+        double radius = Math.min(width, height) / 2.0;
+        double angle = Math.PI * 2 / layoutGraph.getChildren().size();
+        int count = 0;
+        for (ElkNode node : layoutGraph.getChildren()) {
+            node.setLocation(Math.sin(angle * count) * radius + width / 2,
+                    Math.cos(angle * count) * radius + height / 2);
+            count++;
+        }
+    }
 
-        subTask.done();
+    /**
+     * Centers the children placed by an earlier layout in the frame, keeping their relative positions, and places each
+     * new child at the barycenter of its neighbours closer to the placed children. New children without a path to a
+     * placed one are put in the center. New children are moved apart by a deterministic offset of less than k.
+     *
+     * @return which children are new, indexed like the children, null if no child was placed before
+     */
+    private boolean[] keepExistingPositions(ElkNode layoutGraph, double k) {
+        List<ElkNode> children = layoutGraph.getChildren();
+        int n = children.size();
+        boolean[] isNew = new boolean[n];
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            ElkNode node = children.get(i);
+            node.setProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX, i);
+            isNew[i] = !node.getProperty(FruchtermanReingoldOptions.OUTPUTS_PLACED);
+            if (!isNew[i]) {
+                minX = Math.min(minX, node.getX());
+                minY = Math.min(minY, node.getY());
+                maxX = Math.max(maxX, node.getX());
+                maxY = Math.max(maxY, node.getY());
+            }
+        }
+        if (minX > maxX) {
+            return null;
+        }
+
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double shiftX = (width - (maxX - minX)) / 2 - minX;
+        double shiftY = (height - (maxY - minY)) / 2 - minY;
+        int[] distance = new int[n];
+        int[] queue = new int[n];
+        int queueEnd = 0;
+        for (int i = 0; i < n; i++) {
+            if (isNew[i]) {
+                distance[i] = Integer.MAX_VALUE;
+            } else {
+                x[i] = children.get(i).getX() + shiftX;
+                y[i] = children.get(i).getY() + shiftY;
+                queue[queueEnd++] = i;
+            }
+        }
+
+        // breadth first from the placed children, each new child only uses neighbours placed before it
+        Adjacency adjacency = Adjacency.of(layoutGraph);
+        for (int head = 0; head < queueEnd; head++) {
+            int node = queue[head];
+            for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                int neighbour = adjacency.neighbours[i];
+                if (distance[neighbour] == Integer.MAX_VALUE) {
+                    distance[neighbour] = distance[node] + 1;
+                    queue[queueEnd++] = neighbour;
+                }
+            }
+        }
+        for (int head = 0; head < queueEnd; head++) {
+            int node = queue[head];
+            if (!isNew[node]) {
+                continue;
+            }
+            double sumX = 0, sumY = 0;
+            int count = 0;
+            for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                int neighbour = adjacency.neighbours[i];
+                if (distance[neighbour] < distance[node]) {
+                    sumX += x[neighbour];
+                    sumY += y[neighbour];
+                    count++;
+                }
+            }
+            x[node] = sumX / count;
+            y[node] = sumY / count;
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (isNew[i]) {
+                if (distance[i] == Integer.MAX_VALUE) {
+                    x[i] = width / 2;
+                    y[i] = height / 2;
+                }
+                x[i] += placementOffset(i, 0) * k;
+                y[i] += placementOffset(i, 1) * k;
+            }
+            children.get(i).setLocation(x[i], y[i]);
+        }
+        return isNew;
+    }
+
+    /**
+     * Places the children by {@link PivotMds} with edges of about length k, centered in the frame and shrunk if needed
+     * to fit into it. Children at the same graph distance to all pivots, like the leaves of a star, are moved apart by
+     * a deterministic offset of less than k.
+     */
+    private void placePivotMds(ElkNode layoutGraph, double k) {
+        List<ElkNode> children = layoutGraph.getChildren();
+        int n = children.size();
+        for (int i = 0; i < n; i++) {
+            children.get(i).setProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX, i);
+        }
+        double[] x = new double[n];
+        double[] y = new double[n];
+        PivotMds.place(Adjacency.of(layoutGraph), pivotCount, seed, runParallel ? pool : null, x, y);
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minX = Math.min(minX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxX = Math.max(maxX, x[i]);
+            maxY = Math.max(maxY, y[i]);
+        }
+        double scale = k;
+        if ((maxX - minX) * scale > width) {
+            scale = width / (maxX - minX);
+        }
+        if ((maxY - minY) * scale > height) {
+            scale = height / (maxY - minY);
+        }
+        for (int i = 0; i < n; i++) {
+            children.get(i).setLocation(
+                    (x[i] - (minX + maxX) / 2) * scale + width / 2 + placementOffset(i, 0) * k,
+                    (y[i] - (minY + maxY) / 2) * scale + height / 2 + placementOffset(i, 1) * k);
+        }
+    }
+
+    /**
+     * @return an offset in (-0.5, 0.5) that only depends on the seed and the child, to keep newly placed children
+     *         apart
+     */
+    private double placementOffset(int child, int component) {
+        // paired with no node
+        return PairJitter.offset(seed, -1, child, -1, component);
+    }
+
+    /**
+     * @return the nodes at most hops edges away from a node marked in start
+     */
+    private static boolean[] withinHops(Adjacency adjacency, boolean[] start, int hops) {
+        boolean[] reached = start.clone();
+        int[] queue = new int[start.length];
+        int[] distance = new int[start.length];
+        int queueEnd = 0;
+        for (int node = 0; node < start.length; node++) {
+            if (start[node]) {
+                queue[queueEnd++] = node;
+            }
+        }
+        for (int head = 0; head < queueEnd; head++) {
+            int node = queue[head];
+            if (distance[node] == hops) {
+                continue;
+            }
+            for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                int neighbour = adjacency.neighbours[i];
+                if (!reached[neighbour]) {
+                    reached[neighbour] = true;
+                    distance[neighbour] = distance[node] + 1;
+                    queue[queueEnd++] = neighbour;
+                }
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * @return true if only the changes to an earlier layout are refined
+     */
+    private boolean isIncremental() {
+        return incremental && initLayout == InitialLayoutEnum.KEEP_EXISTING;
     }
 
     /**
      * Moves each node by their displacement vector, but no more than temperature and not outside of x in [0,width] and
      * y in [0,height]
      */
-    private void performMovementSerial(ElkNode layoutGraph, IElkProgressMonitor subTask, double temperature) {
+    private void performMovementSerial(
+            ElkNode layoutGraph, IElkProgressMonitor subTask, NodeTemperature temperature,
+            ConvergenceMonitor convergence) {
         subTask.begin("Performing Movement", layoutGraph.getChildren().size());
-        for (ElkNode node : layoutGraph.getChildren()) {
-            performMovementParallel(node, temperature);
+        List<ElkNode> nodes = layoutGraph.getChildren();
+        for (int i = 0; i < nodes.size(); i++) {
+            convergence.record(i, performMovementParallel(nodes.get(i), i, temperature));
             subTask.worked(1);
         }
         subTask.done();
     }
 
-    private void performMovementParallel(ElkNode current, double temperature) {
+    /**
+     * @return the distance current actually moved
+     */
+    private double performMovementParallel(ElkNode current, int index, NodeTemperature temperature) {
         KVector disp = current.getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR);
         double displacementDistance = disp.length();
+        if (telemetry != null) {
+            telemetry.recordForce(index, displacementDistance);
+        }
+
+        // limit displacement by temperature
+        disp.normalize().scale(Math.min(temperature.get(index), displacementDistance));
+        temperature.update(index, disp.x, disp.y);
+
+        // when hitting wall normal to wall
+        double oldX = current.getX();
+        double oldY = current.getY();
+        current.setX(Math.min(width, Math.max(0, oldX + disp.x)));
+        current.setY(Math.min(height, Math.max(0, oldY + disp.y)));
+
+        double movedX = current.getX() - oldX;
+        double movedY = current.getY() - oldY;
+        return Math.sqrt(movedX * movedX + movedY * movedY);
+    }
+
+    /**
+     * Writes the moved position of node to toX and toY, which may be the positions of state
+     *
+     * @return the distance node actually moved
+     */
+    private double performMovement(SimulationState state, int node, NodeTemperature temperature, double[] toX,
+            double[] toY) {
+        double dispX = state.dispX[node];
+        double dispY = state.dispY[node];
+        double displacementDistance = Math.sqrt(dispX * dispX + dispY * dispY);
+        if (state.telemetry != null) {
+            state.telemetry.recordForce(node, displacementDistance);
+        }
 
         // limit displacement by temperature
-        disp.normalize().scale(Math.min(temperature, displacementDistance));
+        if (displacementDistance > 0) {
+            double scale = Math.min(temperature.get(node), displacementDistance) / displacementDistance;
+            state.dispX[node] = dispX *= scale;
+            state.dispY[node] = dispY *= scale;
+            temperature.update(node, dispX, dispY);
+        }
 
         // when hitting wall normal to wall
-        current.setX(Math.min(width, Math.max(0, current.getX() + disp.x)));
-        current.setY(Math.min(height, Math.max(0, current.getY() + disp.y)));
+        double oldX = state.x[node];
+        double oldY = state.y[node];
+        toX[node] = Math.min(state.frameWidth, Math.max(0, oldX + dispX));
+        toY[node] = Math.min(state.frameHeight, Math.max(0, oldY + dispY));
+
+        double movedX = toX[node] - oldX;
+        double movedY = toY[node] - oldY;
+        return Math.sqrt(movedX * movedX + movedY * movedY);
     }
 
     /**
-     * Calculate the repulsion for each edge and adds it to the displacement vector of the nodes
+     * Calculate the attraction for each pair of neighbours and adds it to the displacement vector of both nodes
      */
     private void calculateAttractionSerial(
-            ElkNode layoutGraph, IElkProgressMonitor subTask, double k) {
-        subTask.begin("Calculating Attraction", layoutGraph.getContainedEdges().size());
-
-        for (ElkEdge edge : layoutGraph.getContainedEdges()) {
-            for (ElkConnectableShape s1 : edge.getSources()) {
-                for (ElkConnectableShape s2 : edge.getTargets()) {
-                    // assumption 1 only edges between nodes
-                    if (s1 instanceof ElkNode && s2 instanceof ElkNode && !s1.equals(s2)) {
-                        KVector disp = calculateAttraction((ElkNode) s1, (ElkNode) s2, k);
-                        s1.getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR).add(disp);
-                        s2.getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR).sub(disp);
-                    }
+            ElkNode layoutGraph, IElkProgressMonitor subTask, Adjacency adjacency, double k) {
+        subTask.begin("Calculating Attraction", adjacency.edgeCount);
+
+        List<ElkNode> nodes = layoutGraph.getChildren();
+        for (int node = 0; node < nodes.size(); node++) {
+            ElkNode n1 = nodes.get(node);
+            for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                // each pair is listed at both nodes, only handle it at the lower one
+                if (adjacency.neighbours[i] < node) {
+                    continue;
+                }
+                ElkNode n2 = nodes.get(adjacency.neighbours[i]);
+                double dx = n2.getX() - n1.getX();
+                double dy = n2.getY() - n1.getY();
+                // act as if we have a small offset if we are at distance 0
+                if (dx == 0 && dy == 0) {
+                    dx = jitter(n2, n1, 0);
+                    dy = jitter(n2, n1, 1);
                 }
+                double distance = Math.sqrt(dx * dx + dy * dy);
+                double force = adjacency.weights[i] * forceFunctions.attractionForce(distance, k) / distance;
+
+                n1.getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR).add(dx * force, dy * force);
+                n2.getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR).add(-dx * force, -dy * force);
             }
         }
 
         subTask.done();
     }
 
-    private void calculateAttractionParallel(final ElkNode current, double k) {
-        Stream<ElkConnectableShape> sources = current.getIncomingEdges().stream().flatMap(e -> e.getSources().stream());
-        Stream<ElkConnectableShape> targets = current.getOutgoingEdges().stream().flatMap(e -> e.getTargets().stream());
-        KVector disp = current.getProperty(
-                FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR);
-        Stream.concat(sources, targets)
-                .sequential()
-                .filter(e -> e instanceof ElkNode)
-                .map(e -> (ElkNode) e)
-                .map(node -> calculateAttraction(current, node, k))
-                .forEach(disp::add);
-    }
-
-    @SuppressWarnings("ConstantConditions") /**
-     * The resulting Vector points from node to neighbor
-     * */
-    private KVector calculateAttraction(ElkNode node, ElkNode neighbour, double k) {
-        KVector dist = difference(neighbour, node);
+    /**
+     * Calculates the attraction between the two nodes of edge once and stores it in the edge forces of adjacency,
+     * these are added to the nodes by {@link #addEdgeAttraction(Adjacency, int, KVector)} afterwards. Different edges
+     * can be calculated concurrently.
+     */
+    private void calculateEdgeAttraction(List<ElkNode> nodes, Adjacency adjacency, int edge, double k) {
+        ElkNode source = nodes.get(adjacency.edgeSource[edge]);
+        ElkNode target = nodes.get(adjacency.edgeTarget[edge]);
+        double dx = target.getX() - source.getX();
+        double dy = target.getY() - source.getY();
         // act as if we have a small offset if we are at distance 0
-        if (dist.length() == 0) {
-            dist.x = detRand.doubles().map(d -> d - 0.5).filter(d -> d != 0).findFirst().getAsDouble();
-            dist.y = detRand.doubles().map(d -> d - 0.5).filter(d -> d != 0).findFirst().getAsDouble();
+        if (dx == 0 && dy == 0) {
+            dx = jitter(target, source, 0);
+            dy = jitter(target, source, 1);
         }
-        double force = forceFunctions.attractionForce(dist.length(), k);
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        double force = adjacency.edgeWeight[edge] * forceFunctions.attractionForce(distance, k) / distance;
+        adjacency.edgeForceX[edge] = dx * force;
+        adjacency.edgeForceY[edge] = dy * force;
+    }
 
-        dist.normalize().scale(force);
-        return dist;
+    /**
+     * Adds the edge forces on node, pointing towards its neighbours, to disp one neighbour at a time in the order of
+     * the adjacency, the order {@link #calculateAttractionSerial} adds them in, so both give the same result
+     */
+    private void addEdgeAttraction(Adjacency adjacency, int node, KVector disp) {
+        for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+            double forceX = adjacency.edgeForceX[adjacency.edgeOf[i]];
+            double forceY = adjacency.edgeForceY[adjacency.edgeOf[i]];
+            if (node < adjacency.neighbours[i]) {
+                disp.add(forceX, forceY);
+            } else {
+                disp.add(-forceX, -forceY);
+            }
+        }
+    }
+
+    /**
+     * Adds the attraction of all neighbours of node to its displacement
+     */
+    private void calculateAttraction(SimulationState state, int node, double k) {
+        Adjacency adjacency = state.adjacency;
+        for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+            int other = adjacency.neighbours[i];
+            double dx = state.x[other] - state.x[node];
+            double dy = state.y[other] - state.y[node];
+            // act as if we have a small offset if we are at distance 0
+            if (dx == 0 && dy == 0) {
+                dx = PairJitter.offset(seed, state.iteration, other, node, 0);
+                dy = PairJitter.offset(seed, state.iteration, other, node, 1);
+            }
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            double force = adjacency.weights[i] * forceFunctions.attractionForce(distance, k) / distance;
+
+            state.dispX[node] += dx * force;
+            state.dispY[node] += dy * force;
+        }
+    }
+
+    /**
+     * Calculates the attraction between the two nodes of edge once and stores it in the edge forces of the adjacency,
+     * the same values calculateAttraction adds for the two nodes
+     */
+    private void calculateEdgeAttraction(SimulationState state, int edge, double k) {
+        Adjacency adjacency = state.adjacency;
+        int source = adjacency.edgeSource[edge];
+        int target = adjacency.edgeTarget[edge];
+        double dx = state.x[target] - state.x[source];
+        double dy = state.y[target] - state.y[source];
+        // act as if we have a small offset if we are at distance 0
+        if (dx == 0 && dy == 0) {
+            dx = PairJitter.offset(seed, state.iteration, target, source, 0);
+            dy = PairJitter.offset(seed, state.iteration, target, source, 1);
+        }
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        double force = adjacency.edgeWeight[edge] * forceFunctions.attractionForce(distance, k) / distance;
+        adjacency.edgeForceX[edge] = dx * force;
+        adjacency.edgeForceY[edge] = dy * force;
     }
 
     /**
      * For each node resets displacement vector and than calculates repulsion summed up into displacement vector
      */
     private void calculateRepulsionSerial(
-            ElkNode layoutGraph, IElkProgressMonitor subTask, List<ElkNode>[][] grid, double k) {
+            ElkNode layoutGraph, IElkProgressMonitor subTask, CellGrid grid, double k) {
         subTask.begin("Calculating Repulsion", layoutGraph.getChildren().size());
 
         for (ElkNode node : layoutGraph.getChildren()) {
@@ -376,101 +1496,469 @@ public class FruchtermanReingoldLayoutProvider extends AbstractLayoutProvider {
     }
 
     private void calculateRepulsionParallel(
-            final ElkNode node, List<ElkNode>[][] grid, double k) {
+            final ElkNode node, CellGrid grid, double k) {
         KVector nodeDisp = node.getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR);
         nodeDisp.reset();
-        getNodesInVicinity(node, grid, k).sequential()
-                .map(neighbour -> calculateRepulsion(node, neighbour, k))
-                .forEach(nodeDisp::add);
+
+        switch (repulsionMode) {
+        case RADIUS2K:
+        case GRID3X3:
+        case SAMPLED:
+            double maxDistanceSquared = nearDistanceSquared(k);
+            KVector gridPos = node.getProperty(FruchtermanReingoldOptions.OUTPUTS_GRID_SECTION);
+            List<ElkNode> siblings = node.getParent().getChildren();
+
+            // all nodes in the 3x3 sections around the grid section node is in, each column is one range
+            int minRow = Math.max(0, (int) gridPos.y - 1);
+            int maxRow = Math.min(grid.rows - 1, (int) gridPos.y + 1);
+            for (int x = Math.max(0, (int) gridPos.x - 1); x <= Math.min(grid.columns - 1, (int) gridPos.x + 1); x++) {
+                int end = grid.rangeEnd(x, maxRow);
+                for (int i = grid.rangeStart(x, minRow); i < end; i++) {
+                    ElkNode neighbour = siblings.get(grid.sortedNodes[i]);
+                    if (!neighbour.equals(node)) {
+                        addRepulsion(node, neighbour, k, maxDistanceSquared, nodeDisp);
+                    }
+                }
+            }
+            if (repulsionMode == RepulsionEnum.SAMPLED) {
+                addSampledRepulsion(node, siblings, k, maxDistanceSquared, nodeDisp);
+            }
+            break;
+        case REPULSE_ALL:
+            List<ElkNode> children = node.getParent().getChildren();
+            for (int i = 0; i < children.size(); i++) {
+                if (!children.get(i).equals(node)) {
+                    addRepulsion(node, children.get(i), k, Double.POSITIVE_INFINITY, nodeDisp);
+                }
+            }
+            break;
+        case BARNES_HUT:
+            int index = node.getProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX);
+            quadTree.calculateRepulsion(index, forceFunctions, k, theta, seed, currentIteration);
+            nodeDisp.add(quadTree.getForceX(index), quadTree.getForceY(index));
+            break;
+        default:
+            // new mode unknown to us no repulsion
+            break;
+        }
     }
 
-    @SuppressWarnings("ConstantConditions")
     /**
-     * The resulting Vector points from neighbor to node 
-     * */
-    private KVector calculateRepulsion(ElkNode node, ElkNode neighbor, double k) {
-        KVector dist = difference(node, neighbor);
+     * Adds the repulsion neighbour exerts on node to disp, if they are no further apart than the square root of
+     * maxDistanceSquared
+     */
+    private void addRepulsion(ElkNode node, ElkNode neighbour, double k, double maxDistanceSquared, KVector disp) {
+        double dx = node.getX() - neighbour.getX();
+        double dy = node.getY() - neighbour.getY();
+        double distanceSquared = dx * dx + dy * dy;
+        if (distanceSquared > maxDistanceSquared) {
+            return;
+        }
         // act as if we have a small offset if we are at distance 0
-        if (dist.length() == 0) {
-            dist.x = detRand.doubles().map(d -> d - 0.5).filter(d -> d != 0).findFirst().getAsDouble();
-            dist.y = detRand.doubles().map(d -> d - 0.5).filter(d -> d != 0).findFirst().getAsDouble();
+        if (distanceSquared == 0) {
+            dx = jitter(node, neighbour, 0);
+            dy = jitter(node, neighbour, 1);
+            distanceSquared = dx * dx + dy * dy;
         }
-        double force = forceFunctions.repulsionForce(dist.length(), k);
-        dist.normalize().scale(force);
-        return dist;
+        double distance = Math.sqrt(distanceSquared);
+        double force = forceFunctions.repulsionForce(distance, k) / distance;
+        disp.add(dx * force, dy * force);
     }
 
     /**
-     * Get all nodes that node is repulsed by
-     *
-     * @param node
-     *            the node we are observing from
-     * @param grid
-     *            the grid with the contained nodes in each sector
-     * @param k
-     *            the optimal distance for our nodes
-     *
-     * @return all nodes node gets repulsed from
+     * Adds the repulsion of repulsionSamples randomly drawn siblings further away from node than the square root of
+     * nearDistanceSquared to disp, scaled by the number of siblings per sample. Its expected value is the repulsion of
+     * all siblings that far away, without visiting them.
+     */
+    private void addSampledRepulsion(ElkNode node, List<ElkNode> siblings, double k, double nearDistanceSquared,
+            KVector disp) {
+        int nodeCount = siblings.size();
+        if (nodeCount < 2) {
+            return;
+        }
+        int index = node.getProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX);
+        double sampledX = 0;
+        double sampledY = 0;
+        for (int sample = 0; sample < repulsionSamples; sample++) {
+            ElkNode other = siblings.get(PairJitter.sample(seed, currentIteration, index, sample, nodeCount));
+            double dx = node.getX() - other.getX();
+            double dy = node.getY() - other.getY();
+            double distanceSquared = dx * dx + dy * dy;
+            if (distanceSquared > nearDistanceSquared) {
+                double distance = Math.sqrt(distanceSquared);
+                double force = forceFunctions.repulsionForce(distance, k) / distance;
+                sampledX += dx * force;
+                sampledY += dy * force;
+            }
+        }
+        double scale = (double) (nodeCount - 1) / repulsionSamples;
+        disp.add(sampledX * scale, sampledY * scale);
+    }
+
+    /**
+     * Sets the displacement of node to the repulsion it experiences
      */
-    private Stream<ElkNode> getNodesInVicinity(ElkNode node, List<ElkNode>[][] grid, double k) {
+    private void calculateRepulsion(SimulationState state, int node, double k) {
+        state.dispX[node] = 0;
+        state.dispY[node] = 0;
 
         switch (repulsionMode) {
         case RADIUS2K:
         case GRID3X3:
-            KVector gridPos = node.getProperty(FruchtermanReingoldOptions.OUTPUTS_GRID_SECTION);
-
-            // gather all nodes in the 3x3 sections around the grid section node is in
-            Stream.Builder<ElkNode> builder = Stream.builder();
-            for (int x = -1; x <= 1; x++) {
-                for (int y = -1; y <= 1; y++) {
-                    if (gridPos.x + x < 0 || gridPos.x + x >= grid.length) {
-                        continue;
+        case SAMPLED:
+            double maxDistanceSquared = nearDistanceSquared(k);
+            CellGrid grid = state.grid;
+            int column = grid.getColumnOf(node);
+            int row = grid.getRowOf(node);
+
+            // all nodes in the 3x3 sections around the grid section node is in, each column is one range
+            int minRow = Math.max(0, row - 1);
+            int maxRow = Math.min(grid.rows - 1, row + 1);
+            for (int x = Math.max(0, column - 1); x <= Math.min(grid.columns - 1, column + 1); x++) {
+                int start = grid.rangeStart(x, minRow);
+                int end = grid.rangeEnd(x, maxRow);
+                if (blockedRepulsion) {
+                    // node itself is in its own column and always coincides with itself
+                    int coincident = isFloatKernel()
+                            ? RepulsionKernel.accumulate((float) state.x[node], (float) state.y[node],
+                                    grid.sortedFloatX, grid.sortedFloatY, start, end,
+                                    (float) forceFunctions.repulsionScale(k), (float) maxDistanceSquared, state.dispX,
+                                    state.dispY, node)
+                            : RepulsionKernel.accumulate(state.x[node], state.y[node], grid.sortedX, grid.sortedY,
+                                    start, end, forceFunctions.repulsionScale(k), maxDistanceSquared, state.dispX,
+                                    state.dispY, node);
+                    if (coincident > (x == column ? 1 : 0)) {
+                        addCoincidentRepulsion(state, node, grid.sortedNodes, start, end, k);
                     }
-                    if (gridPos.y + y < 0 || gridPos.y + y >= grid[(int) (gridPos.x + x)].length) {
-                        continue;
+                    continue;
+                }
+                for (int i = start; i < end; i++) {
+                    int other = grid.sortedNodes[i];
+                    if (other != node) {
+                        addRepulsion(state, node, other, k, maxDistanceSquared);
                     }
-                    List<ElkNode> section = grid[(int) (gridPos.x + x)][(int) (gridPos.y + y)];
-                    section.forEach(builder);
                 }
             }
+            if (repulsionMode == RepulsionEnum.SAMPLED) {
+                addSampledRepulsion(state, node, k, maxDistanceSquared);
+            }
+            break;
+        case REPULSE_ALL:
+            if (isFloatKernel()) {
+                // all nodes are in the grid, in grid order
+                CellGrid all = state.grid;
+                int coincident = RepulsionKernel.accumulate((float) state.x[node], (float) state.y[node],
+                        all.sortedFloatX, all.sortedFloatY, 0, state.nodeCount,
+                        (float) forceFunctions.repulsionScale(k), Float.POSITIVE_INFINITY, state.dispX, state.dispY,
+                        node);
+                if (coincident > 1) {
+                    addCoincidentRepulsion(state, node, all.sortedNodes, 0, state.nodeCount, k);
+                }
+                break;
+            }
+            if (blockedRepulsion) {
+                int coincident = RepulsionKernel.accumulate(state.x[node], state.y[node], state.x, state.y, 0,
+                        state.nodeCount, forceFunctions.repulsionScale(k), Double.POSITIVE_INFINITY, state.dispX,
+                        state.dispY, node);
+                if (coincident > 1) {
+                    addCoincidentRepulsion(state, node, null, 0, state.nodeCount, k);
+                }
+                break;
+            }
+            for (int other = 0; other < state.nodeCount; other++) {
+                if (other != node) {
+                    addRepulsion(state, node, other, k, Double.POSITIVE_INFINITY);
+                }
+            }
+            break;
+        case BARNES_HUT:
+            state.quadTree.calculateRepulsion(node, forceFunctions, k, theta, seed, state.iteration);
+            state.dispX[node] = state.quadTree.getForceX(node);
+            state.dispY[node] = state.quadTree.getForceY(node);
+            break;
+        default:
+            // new mode unknown to us no repulsion
+            break;
+        }
+    }
 
-            // remove node itself
-            Stream<ElkNode> tmp = builder.build().filter(e -> !e.equals(node));
+    /**
+     * Adds the repulsion of other to the displacement of node, if they are no further apart than the square root of
+     * maxDistanceSquared
+     */
+    private void addRepulsion(SimulationState state, int node, int other, double k, double maxDistanceSquared) {
+        double dx = state.x[node] - state.x[other];
+        double dy = state.y[node] - state.y[other];
+        double distanceSquared = dx * dx + dy * dy;
+        if (distanceSquared > maxDistanceSquared) {
+            return;
+        }
+        // act as if we have a small offset if we are at distance 0
+        if (distanceSquared == 0) {
+            dx = PairJitter.offset(seed, state.iteration, node, other, 0);
+            dy = PairJitter.offset(seed, state.iteration, node, other, 1);
+            distanceSquared = dx * dx + dy * dy;
+        }
+        double distance = Math.sqrt(distanceSquared);
+        double force = forceFunctions.repulsionForce(distance, k) / distance;
+        state.dispX[node] += dx * force;
+        state.dispY[node] += dy * force;
+    }
 
-            if (repulsionMode == RepulsionEnum.RADIUS2K) {
-                // filter nodes that are further from node than 2k
-                tmp = tmp.filter(n -> difference(node, n).length() <= 2 * k);
+    /**
+     * Adds the repulsion of repulsionSamples randomly drawn nodes further away from node than the square root of
+     * nearDistanceSquared, scaled by the number of other nodes per sample. Its expected value is the repulsion of all
+     * nodes that far away, without visiting them. The samples are drawn anew each iteration.
+     */
+    private void addSampledRepulsion(SimulationState state, int node, double k, double nearDistanceSquared) {
+        if (state.nodeCount < 2) {
+            return;
+        }
+        double forceX = 0;
+        double forceY = 0;
+        for (int sample = 0; sample < repulsionSamples; sample++) {
+            int other = PairJitter.sample(seed, state.iteration, node, sample, state.nodeCount);
+            double dx = state.x[node] - state.x[other];
+            double dy = state.y[node] - state.y[other];
+            double distanceSquared = dx * dx + dy * dy;
+            if (distanceSquared > nearDistanceSquared) {
+                double distance = Math.sqrt(distanceSquared);
+                double force = forceFunctions.repulsionForce(distance, k) / distance;
+                forceX += dx * force;
+                forceY += dy * force;
             }
+        }
+        double scale = (double) (state.nodeCount - 1) / repulsionSamples;
+        state.dispX[node] += forceX * scale;
+        state.dispY[node] += forceY * scale;
+    }
 
-            return tmp;
-        case REPULSE_ALL:
-            // gather all nodes but node
-            return node.getParent().getChildren().stream().filter(e -> !node.equals(e));
-        default:
-            // new mode unknown to us returning empty Stream
-            return Stream.empty();
+    /**
+     * @return true if the repulsion of the nodes in the 3x3 grid sections around a node is calculated exactly
+     */
+    private boolean isGridMode() {
+        return repulsionMode == RepulsionEnum.GRID3X3 || repulsionMode == RepulsionEnum.RADIUS2K
+                || repulsionMode == RepulsionEnum.SAMPLED;
+    }
+
+    /**
+     * @return true if the blocked repulsion reads the positions in float precision, only the grid modes without the
+     *         symmetric sweep and REPULSE_ALL use the blocked kernel
+     */
+    private boolean isFloatKernel() {
+        return floatPrecision && blockedRepulsion
+                && (repulsionMode == RepulsionEnum.REPULSE_ALL || isGridMode() && !isSymmetricRepulsion());
+    }
+
+    /**
+     * @return the squared distance up to which the grid modes calculate the repulsion exactly, sampling covers the
+     *         nodes further away
+     */
+    private double nearDistanceSquared(double k) {
+        return repulsionMode == RepulsionEnum.GRID3X3 ? Double.POSITIVE_INFINITY : 4 * k * k;
+    }
+
+    /**
+     * @return true if the symmetric sweep is used, it calculates the forces of all nodes so it is not used while
+     *         freezing settled nodes or moving only the nodes near new ones
+     */
+    private boolean isSymmetricRepulsion() {
+        return symmetricRepulsion && isGridMode() && !freezeSettledNodes && !(isIncremental() && incrementalHops >= 0);
+    }
+
+    /**
+     * Sets the displacement of all nodes to the repulsion they experience in the grid modes, visiting each pair of
+     * neighbouring grid sections once and applying the force of each pair of nodes to both of them.
+     *
+     * The sections are swept in six colors by column modulo 2 and row modulo 3. A section only writes to nodes in its
+     * own and the following column in the rows next to it, so sections of the same color never write to the same node
+     * and can be processed in parallel. The colors are processed in a fixed order, serial and parallel runs therefore
+     * give the same result.
+     */
+    private void calculateSymmetricRepulsion(SimulationState state, double k) {
+        double maxDistanceSquared = nearDistanceSquared(k);
+        CellGrid grid = state.grid;
+
+        forEachRange(state.nodeCount, (from, to) -> {
+            Arrays.fill(state.dispX, from, to, 0);
+            Arrays.fill(state.dispY, from, to, 0);
+        });
+
+        // only the non empty sections are visited
+        grid.groupByColor();
+        int[] colorOrder = grid.getColorOrder();
+        for (int color = 0; color < 6; color++) {
+            int first = grid.getColorStart(color);
+            forEachRange(grid.getColorStart(color + 1) - first, (from, to) -> {
+                for (int i = first + from; i < first + to; i++) {
+                    repulseSection(state, colorOrder[i], k, maxDistanceSquared);
+                }
+            });
+        }
+        if (repulsionMode == RepulsionEnum.SAMPLED) {
+            forEachRange(state.nodeCount, (from, to) -> {
+                for (int node = from; node < to; node++) {
+                    addSampledRepulsion(state, node, k, maxDistanceSquared);
+                }
+            });
+        }
+    }
+
+    /**
+     * Applies the repulsion between all pairs of nodes in the non empty section grid.sections[index] and between the
+     * section and the sections below it and in the next column next to it
+     */
+    private void repulseSection(SimulationState state, int index, double k, double maxDistanceSquared) {
+        CellGrid grid = state.grid;
+        int column = grid.sections[index] / grid.rows;
+        int row = grid.sections[index] % grid.rows;
+        int start = grid.sectionStart[index];
+        int end = grid.sectionStart[index + 1];
+
+        for (int i = start; i < end; i++) {
+            for (int j = i + 1; j < end; j++) {
+                addSymmetricRepulsion(state, grid.sortedNodes[i], grid.sortedNodes[j], k, maxDistanceSquared);
+            }
+        }
+        if (row + 1 < grid.rows) {
+            repulseRanges(state, start, end, end, grid.rangeEnd(column, row + 1), k, maxDistanceSquared);
+        }
+        if (column + 1 < grid.columns) {
+            // the three sections next to it in the next column are one range
+            repulseRanges(state, start, end, grid.rangeStart(column + 1, Math.max(0, row - 1)),
+                    grid.rangeEnd(column + 1, Math.min(grid.rows - 1, row + 1)), k, maxDistanceSquared);
+        }
+    }
+
+    private void repulseRanges(SimulationState state, int from, int to, int otherFrom, int otherTo, double k,
+            double maxDistanceSquared) {
+        int[] sortedNodes = state.grid.sortedNodes;
+        for (int i = from; i < to; i++) {
+            for (int j = otherFrom; j < otherTo; j++) {
+                addSymmetricRepulsion(state, sortedNodes[i], sortedNodes[j], k, maxDistanceSquared);
+            }
+        }
+    }
+
+    /**
+     * Applies the repulsion between node and other to both, if they are no further apart than the square root of
+     * maxDistanceSquared
+     */
+    private void addSymmetricRepulsion(SimulationState state, int node, int other, double k,
+            double maxDistanceSquared) {
+        double dx = state.x[node] - state.x[other];
+        double dy = state.y[node] - state.y[other];
+        double distanceSquared = dx * dx + dy * dy;
+        if (distanceSquared > maxDistanceSquared) {
+            return;
+        }
+        // act as if we have a small offset if we are at distance 0
+        if (distanceSquared == 0) {
+            dx = PairJitter.offset(seed, state.iteration, node, other, 0);
+            dy = PairJitter.offset(seed, state.iteration, node, other, 1);
+            distanceSquared = dx * dx + dy * dy;
         }
+        double distance = Math.sqrt(distanceSquared);
+        double force = forceFunctions.repulsionForce(distance, k) / distance;
+        state.dispX[node] += dx * force;
+        state.dispY[node] += dy * force;
+        state.dispX[other] -= dx * force;
+        state.dispY[other] -= dy * force;
     }
 
     /**
-     * @param a
-     *            Node who's position to subtract from
-     * @param b
-     *            Node who's position to subtract
+     * Adds the repulsion of all other nodes in [from, to) at the same position as node, these are skipped by the
+     * {@link RepulsionKernel}. With float precision nodes at the same position as floats are meant.
      *
-     * @return vector of a.pos - b.pos
+     * @param order
+     *            the node at each index of the range, null if the index is the node
      */
-    private KVector difference(ElkNode a, ElkNode b) {
-        return new KVector(a.getX() - b.getX(), a.getY() - b.getY());
+    private void addCoincidentRepulsion(SimulationState state, int node, int[] order, int from, int to, double k) {
+        for (int i = from; i < to; i++) {
+            int other = order == null ? i : order[i];
+            boolean same = isFloatKernel()
+                    ? (float) state.x[other] == (float) state.x[node] && (float) state.y[other] == (float) state.y[node]
+                    : state.x[other] == state.x[node] && state.y[other] == state.y[node];
+            if (other != node && same) {
+                addRepulsion(state, node, other, k, Double.POSITIVE_INFINITY);
+            }
+        }
     }
 
-    
-    private void calculateGrid(ElkNode layoutGraph, List<ElkNode>[][] grid, double k) {
+    /**
+     * @return a small offset, never zero, used when node and other are at the same position
+     *
+     * @see PairJitter#offset(long, int, int, int, int)
+     */
+    private double jitter(ElkConnectableShape node, ElkConnectableShape other, int component) {
+        return PairJitter.offset(seed, currentIteration, node.getProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX),
+                other.getProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX), component);
+    }
+
+    /**
+     * Rebuilds the quad tree from the current node positions, only needed when using Barnes-Hut repulsion
+     */
+    private void buildQuadTree(ElkNode layoutGraph) {
+        if (repulsionMode != RepulsionEnum.BARNES_HUT) {
+            return;
+        }
+        quadTree.reset(layoutGraph.getChildren().size());
+        for (ElkNode node : layoutGraph.getChildren()) {
+            quadTree.setPosition(node.getProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX), node.getX(),
+                    node.getY());
+        }
+        quadTree.build();
+    }
+
+    private void buildQuadTree(SimulationState state) {
+        if (repulsionMode == RepulsionEnum.BARNES_HUT) {
+            state.quadTree.build(state.x, state.y, state.nodeCount);
+        }
+    }
+
+    private void calculateGrid(ElkNode layoutGraph, CellGrid grid) {
         KVector p;
+        int index;
         for (ElkNode node : layoutGraph.getChildren()) {
             p = node.getProperty(FruchtermanReingoldOptions.OUTPUTS_GRID_SECTION);
-            grid[(int) p.x][(int) p.y].remove(node);
-            grid[(int) (p.x = node.getX() / (2 * k))][(int) (p.y = node.getY() / (2 * k))].add(node);
+            index = node.getProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX);
+            grid.setCell(index, node.getX(), node.getY());
+            p.x = grid.getColumnOf(index);
+            p.y = grid.getRowOf(index);
+        }
+        rebuildGrid(grid);
+    }
+
+    private void calculateGrid(SimulationState state) {
+        for (int node = 0; node < state.nodeCount; node++) {
+            state.grid.setCell(node, state.x[node], state.y[node]);
+        }
+        rebuildGrid(state);
+    }
+
+    /**
+     * Rebuilds the grid sections from the cells already set for all nodes and gathers the positions in grid order for
+     * blocked repulsion
+     */
+    private void rebuildGrid(SimulationState state) {
+        rebuildGrid(state.grid);
+
+        if (isFloatKernel()) {
+            CellGrid grid = state.grid;
+            grid.allocateSortedFloatPositions();
+            forEachRange(state.nodeCount, (from, to) -> grid.gatherFloatPositions(state.x, state.y, from, to));
+        } else if (blockedRepulsion && isGridMode() && !isSymmetricRepulsion()) {
+            CellGrid grid = state.grid;
+            grid.allocateSortedPositions();
+            forEachRange(state.nodeCount, (from, to) -> grid.gatherPositions(state.x, state.y, from, to));
+        }
+    }
+
+    private void rebuildGrid(CellGrid grid) {
+        if (runParallel) {
+            grid.rebuild(pool, chunkSize);
+        } else {
+            grid.rebuild();
         }
     }
 
@@ -2,6 +2,6 @@ package de.webtowb.agd.s2.layouts;
 
 public enum InitialLayoutEnum {
 
-    CIRCLE, RANDOM_NON_DETERMINISTIC
+    CIRCLE, RANDOM_NON_DETERMINISTIC, KEEP_EXISTING, PIVOT_MDS
 
 }
@@ -0,0 +1,14 @@
+package de.webtowb.agd.s2.layouts;
+
+/**
+ * Receives the {@link IterationStatistics} of each iteration of the Fruchterman Reingold layout, see
+ * {@link de.webtwob.adg.s2.layouts.options.FruchtermanReingoldOptions#SETTINGS_TELEMETRY_LISTENER}.
+ *
+ * When connected components are laid out at the same time the listener is called from several threads at once.
+ */
+@FunctionalInterface
+public interface IterationListener {
+
+    void iterationFinished(IterationStatistics statistics);
+
+}
@@ -0,0 +1,110 @@
+package de.webtowb.agd.s2.layouts;
+
+/**
+ * What the simulation did in one iteration, reported to an {@link IterationListener}.
+ *
+ * A multilevel layout reports the iterations of each level and separately laid out components report their own
+ * iterations, the number of nodes tells them apart. While the statistics are collected each phase runs in a pass of
+ * its own, so the times of repulsion, attraction and movement are measured separately.
+ */
+public final class IterationStatistics {
+
+    private final int iteration;
+    private final int nodeCount;
+    private final double energy;
+    private final double maxDisplacement;
+    private final double meanDisplacement;
+    private final double temperature;
+    private final long repulsionPairs;
+    private final long repulsionNanos;
+    private final long attractionNanos;
+    private final long movementNanos;
+    private final long gridNanos;
+
+    IterationStatistics(int iteration, int nodeCount, double energy, double maxDisplacement, double meanDisplacement,
+            double temperature, long repulsionPairs, long repulsionNanos, long attractionNanos, long movementNanos,
+            long gridNanos) {
+        this.iteration = iteration;
+        this.nodeCount = nodeCount;
+        this.energy = energy;
+        this.maxDisplacement = maxDisplacement;
+        this.meanDisplacement = meanDisplacement;
+        this.temperature = temperature;
+        this.repulsionPairs = repulsionPairs;
+        this.repulsionNanos = repulsionNanos;
+        this.attractionNanos = attractionNanos;
+        this.movementNanos = movementNanos;
+        this.gridNanos = gridNanos;
+    }
+
+    /**
+     * @return the position of the iteration in the cooling schedule
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * @return the number of nodes simulated, fewer than the children on a coarse level or in a component
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return the sum of the squared lengths of the forces on the nodes before they were limited by the temperature,
+     *         frozen nodes count as zero
+     */
+    public double getEnergy() {
+        return energy;
+    }
+
+    /**
+     * @return the largest distance a node moved
+     */
+    public double getMaxDisplacement() {
+        return maxDisplacement;
+    }
+
+    /**
+     * @return the mean distance the nodes moved
+     */
+    public double getMeanDisplacement() {
+        return meanDisplacement;
+    }
+
+    /**
+     * @return the temperature of the iteration, with adaptive cooling the mean temperature of the nodes after it
+     */
+    public double getTemperature() {
+        return temperature;
+    }
+
+    /**
+     * @return the number of node pairs whose repulsion was calculated or checked against the distance limit, -1 for
+     *         Barnes-Hut which does not count them
+     */
+    public long getRepulsionPairs() {
+        return repulsionPairs;
+    }
+
+    public long getRepulsionNanos() {
+        return repulsionNanos;
+    }
+
+    public long getAttractionNanos() {
+        return attractionNanos;
+    }
+
+    public long getMovementNanos() {
+        return movementNanos;
+    }
+
+    /**
+     * @return the time spent building the grid and, for Barnes-Hut, the quad tree
+     */
+    public long getGridNanos() {
+        return gridNanos;
+    }
+
+}
@@ -0,0 +1,124 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+
+/**
+ * Renumbering of the nodes of a {@link SimulationState} along a Hilbert curve through their current positions.
+ *
+ * Nodes close to each other in the frame get close ids, so the nodes of a grid section and its neighbours are close
+ * in memory and usually end up in the same chunk of a parallel loop. An order is given as the old id of each new id,
+ * per node arrays are permuted in place.
+ */
+final class NodeOrder {
+
+    /**
+     * the curve covers a 2^BITS x 2^BITS grid laid over the frame
+     */
+    private static final int BITS = 16;
+
+    private NodeOrder() {
+    }
+
+    /**
+     * @return the old id of each node in the order of the Hilbert curve, ties by old id
+     */
+    static int[] hilbert(double[] x, double[] y, int nodeCount, double frameWidth, double frameHeight) {
+        int side = 1 << BITS;
+        long[] keys = new long[nodeCount];
+        for (int node = 0; node < nodeCount; node++) {
+            int column = cell(x[node], frameWidth, side);
+            int row = cell(y[node], frameHeight, side);
+            // the index takes all 32 upper bits, flipping the sign bit makes the signed sort order them unsigned
+            keys[node] = (index(column, row, side) << 32 | node) ^ Long.MIN_VALUE;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    private static int cell(double position, double size, int side) {
+        if (!(size > 0)) {
+            return 0;
+        }
+        return (int) Math.max(0, Math.min(side - 1, position / size * side));
+    }
+
+    /**
+     * @return the distance of (x, y) along the Hilbert curve through a side x side grid
+     */
+    private static long index(int x, int y, int side) {
+        long d = 0;
+        for (int s = side / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant, so the curve continues where the last one ended
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * @return the new id of each node by its old id
+     */
+    static int[] inverse(int[] order) {
+        int[] newId = new int[order.length];
+        for (int i = 0; i < order.length; i++) {
+            newId[order[i]] = i;
+        }
+        return newId;
+    }
+
+    /**
+     * Moves the value of each node from its old to its new id
+     */
+    static void permute(double[] values, int[] order) {
+        double[] old = values.clone();
+        for (int i = 0; i < order.length; i++) {
+            values[i] = old[order[i]];
+        }
+    }
+
+    /**
+     * Moves the value of each node from its old to its new id
+     */
+    static void permute(int[] values, int[] order) {
+        int[] old = values.clone();
+        for (int i = 0; i < order.length; i++) {
+            values[i] = old[order[i]];
+        }
+    }
+
+    /**
+     * Moves the value of each node from its old to its new id
+     */
+    static void permute(boolean[] values, int[] order) {
+        boolean[] old = values.clone();
+        for (int i = 0; i < order.length; i++) {
+            values[i] = old[order[i]];
+        }
+    }
+
+    /**
+     * Moves the value of each node from its old to its new id
+     */
+    static void permute(Object[] values, int[] order) {
+        Object[] old = values.clone();
+        for (int i = 0; i < order.length; i++) {
+            values[i] = old[order[i]];
+        }
+    }
+
+}
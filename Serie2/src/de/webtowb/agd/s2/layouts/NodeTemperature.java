@@ -0,0 +1,168 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+
+/**
+ * The temperature of each node, the furthest it may move in one iteration.
+ *
+ * With a global cooling function all nodes share the temperature given for the current iteration. With
+ * {@link CoolingFunctionEnum#ADAPTIVE} each node keeps its own temperature and the direction of its last move, like in
+ * GEM by Frick, Ludwig and Mehldau: moving on in about the same direction heats a node up, swinging back cools it
+ * down, and turning the same way again and again, i.e. rotating around its position, cools it down as well.
+ *
+ * Each node only touches its own entries, so different nodes can be updated concurrently.
+ */
+class NodeTemperature {
+
+    /**
+     * two moves count as the same or as opposite directions if the cosine of their angle is at least this in magnitude
+     */
+    private static final double OSCILLATION_COS = Math.cos(Math.PI / 4);
+
+    /**
+     * how much the temperature changes for the same or the opposite direction
+     */
+    private static final double OSCILLATION_SENSITIVITY = 1.0 / 3;
+
+    /**
+     * a move counts as a turn if the sine of its angle to the last move is at least this in magnitude
+     */
+    private static final double ROTATION_SIN = Math.sin(Math.PI / 3);
+
+    /**
+     * how far a turn moves the skew towards -1 or 1 and how much a skew of magnitude 1 cools a node on each turn
+     */
+    private static final double ROTATION_STEP = 0.25;
+    private static final double ROTATION_SENSITIVITY = 0.5;
+
+    private final double maximum;
+    private final double stopTemperature;
+    private double scheduled;
+
+    // per node temperature, direction of the last move as unit vector and turning tendency, null if not adaptive
+    private final double[] temperature;
+    private final double[] lastX;
+    private final double[] lastY;
+    private final double[] skew;
+
+    private NodeTemperature(double maximum, double stopTemperature, double[] temperature) {
+        this.maximum = maximum;
+        this.stopTemperature = stopTemperature;
+        this.temperature = temperature;
+        int nodeCount = temperature == null ? 0 : temperature.length;
+        lastX = temperature == null ? null : new double[nodeCount];
+        lastY = temperature == null ? null : new double[nodeCount];
+        skew = temperature == null ? null : new double[nodeCount];
+    }
+
+    /**
+     * @param maximum
+     *            no node gets hotter than this
+     *
+     * @return temperatures shared by all nodes, set by {@link #schedule(double)} each iteration
+     */
+    static NodeTemperature global(double maximum) {
+        return new NodeTemperature(maximum, 0, null);
+    }
+
+    /**
+     * @param start
+     *            the temperature of every node in the first iteration
+     * @param maximum
+     *            no node gets hotter than this
+     * @param stopTemperature
+     *            the layout is cold once every node is colder than this
+     */
+    static NodeTemperature adaptive(int nodeCount, double start, double maximum, double stopTemperature) {
+        double[] temperature = new double[nodeCount];
+        Arrays.fill(temperature, Math.min(start, maximum));
+        return new NodeTemperature(maximum, stopTemperature, temperature);
+    }
+
+    /**
+     * Sets the temperature of the current iteration, ignored if adaptive
+     */
+    void schedule(double temperature) {
+        scheduled = Math.min(maximum, temperature);
+    }
+
+    /**
+     * @return the temperature of node in the current iteration
+     */
+    double get(int node) {
+        return temperature == null ? scheduled : temperature[node];
+    }
+
+    /**
+     * @return the temperature of the current iteration, if adaptive the mean temperature of the nodes
+     */
+    double mean() {
+        if (temperature == null) {
+            return scheduled;
+        }
+        double sum = 0;
+        for (double t : temperature) {
+            sum += t;
+        }
+        return temperature.length == 0 ? 0 : sum / temperature.length;
+    }
+
+    /**
+     * Adapts the temperature of node to the direction it was moved in, only the direction of (dispX, dispY) is used
+     */
+    void update(int node, double dispX, double dispY) {
+        if (temperature == null) {
+            return;
+        }
+        double length = Math.sqrt(dispX * dispX + dispY * dispY);
+        if (length == 0) {
+            return;
+        }
+        double directionX = dispX / length;
+        double directionY = dispY / length;
+
+        if (lastX[node] != 0 || lastY[node] != 0) {
+            double cos = directionX * lastX[node] + directionY * lastY[node];
+            double sin = directionX * lastY[node] - directionY * lastX[node];
+            double t = temperature[node];
+            if (Math.abs(cos) >= OSCILLATION_COS) {
+                t *= 1 + OSCILLATION_SENSITIVITY * cos;
+            }
+            if (Math.abs(sin) >= ROTATION_SIN) {
+                skew[node] = Math.max(-1, Math.min(1, skew[node] + ROTATION_STEP * Math.signum(sin)));
+                t *= 1 - ROTATION_SENSITIVITY * Math.abs(skew[node]);
+            }
+            temperature[node] = Math.min(maximum, t);
+        }
+        lastX[node] = directionX;
+        lastY[node] = directionY;
+    }
+
+    /**
+     * Moves the temperature and last direction of each node to its new id, see {@link NodeOrder}
+     */
+    void renumber(int[] order) {
+        if (temperature != null) {
+            NodeOrder.permute(temperature, order);
+            NodeOrder.permute(lastX, order);
+            NodeOrder.permute(lastY, order);
+            NodeOrder.permute(skew, order);
+        }
+    }
+
+    /**
+     * @return true if adaptive and every node is colder than the stop temperature
+     */
+    boolean isCold() {
+        if (temperature == null) {
+            return false;
+        }
+        for (double t : temperature) {
+            if (t >= stopTemperature) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,67 @@
+package de.webtowb.agd.s2.layouts;
+
+/**
+ * Deterministic offsets for pairs of nodes at the same position and deterministic random samples of nodes.
+ *
+ * The offset is a hash of the seed, the iteration and the node pair, a sample a hash of the seed, the iteration, the
+ * node and the number of the sample, so it does not depend on which thread calculates
+ * it or in which order the pairs are processed. There is no shared state to contend on.
+ */
+final class PairJitter {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private PairJitter() {
+    }
+
+    /**
+     * @param component
+     *            0 for the x and 1 for the y offset
+     *
+     * @return an offset in (-0.5, 0.5) that is never zero, the offset of (node, other) is the negated offset of (other,
+     *         node)
+     */
+    static double offset(long seed, int iteration, int node, int other, int component) {
+        long hash = mix(seed + GOLDEN_GAMMA * (iteration + 1L));
+        hash = mix(hash + GOLDEN_GAMMA * (Math.min(node, other) + 1L));
+        hash = mix(hash + GOLDEN_GAMMA * (Math.max(node, other) + 1L));
+        hash = mix(hash + component);
+
+        // 53 random bits to a double in [0, 1)
+        double offset = (hash >>> 11) * 0x1.0p-53 - 0.5;
+        if (offset == 0 || offset == -0.5) {
+            offset = 0.25;
+        }
+        return node < other ? offset : -offset;
+    }
+
+    /**
+     * @return the sample-th node drawn for node in iteration, uniformly from the nodeCount - 1 nodes other than node
+     */
+    static int sample(long seed, int iteration, int node, int sample, int nodeCount) {
+        long hash = mix(seed + GOLDEN_GAMMA * (iteration + 1L));
+        hash = mix(hash + GOLDEN_GAMMA * (node + 1L));
+        hash = mix(hash + GOLDEN_GAMMA * (sample + 1L));
+
+        // the upper 32 bits scaled to [0, nodeCount - 1)
+        int other = (int) (((hash >>> 32) * (nodeCount - 1)) >>> 32);
+        return other < node ? other : other + 1;
+    }
+
+    /**
+     * @return a well distributed hash of seed and value, e.g. to visit nodes in a random but reproducible order
+     */
+    static long hash(long seed, int value) {
+        return mix(seed + GOLDEN_GAMMA * (value + 1L));
+    }
+
+    /**
+     * The SplitMix64 finalizer
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,225 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * An initial placement by Pivot MDS as described in "Eigensolver Methods for Progressive Multidimensional Scaling of
+ * Large Data" by Brandes and Pich.
+ *
+ * The graph distances from a few pivots to all nodes are found by a breadth first search from each pivot. The
+ * double centered matrix of squared distances has one row per node and one column per pivot, the two dominant
+ * eigenvectors of its small pivots x pivots product with itself give the two axes the nodes are projected on. This
+ * costs O(pivots * (nodes + edges)) and places nodes that are close in the graph close to each other.
+ *
+ * Pivots are picked in a random order given by the seed, so all searches can run at the same time. Nodes not
+ * reachable from a pivot are treated as one step further away than its furthest reachable node.
+ */
+final class PivotMds {
+
+    private static final int POWER_ITERATIONS = 100;
+
+    private PivotMds() {
+    }
+
+    /**
+     * Writes the projected position of each node to x and y, scaled so the mean length of an edge is one
+     *
+     * @param pool
+     *            runs the searches in parallel, null to run them one after another
+     */
+    static void place(Adjacency adjacency, int pivotCount, long seed, ForkJoinPool pool, double[] x, double[] y) {
+        int n = adjacency.nodeCount;
+        int pivots = Math.min(pivotCount, n);
+        if (pivots == 0) {
+            Arrays.fill(x, 0, n, 0);
+            Arrays.fill(y, 0, n, 0);
+            return;
+        }
+
+        // the hash of a node in the upper and its id in the lower half, the first pivots after sorting are used
+        long[] order = new long[n];
+        for (int node = 0; node < n; node++) {
+            order[node] = (PairJitter.hash(seed, node) & 0xFFFFFFFF00000000L) | node;
+        }
+        Arrays.sort(order);
+
+        // column p holds the squared distances from pivot p, double centered afterwards
+        double[][] c = new double[pivots][];
+        run(pool, pivots, (from, to) -> {
+            int[] queue = new int[n];
+            for (int p = from; p < to; p++) {
+                c[p] = squaredDistances(adjacency, (int) order[p], queue);
+            }
+        });
+        doubleCenter(c, n);
+
+        // c^T c, each entry summed in node order
+        double[][] product = new double[pivots][pivots];
+        run(pool, pivots, (from, to) -> {
+            for (int p = from; p < to; p++) {
+                for (int q = 0; q < pivots; q++) {
+                    double sum = 0;
+                    for (int node = 0; node < n; node++) {
+                        sum += c[p][node] * c[q][node];
+                    }
+                    product[p][q] = sum;
+                }
+            }
+        });
+
+        double[] first = dominantEigenvector(product, null);
+        double[] second = dominantEigenvector(product, first);
+        project(c, first, x, n);
+        project(c, second, y, n);
+
+        double length = 0;
+        for (int edge = 0; edge < adjacency.edgeCount; edge++) {
+            double dx = x[adjacency.edgeSource[edge]] - x[adjacency.edgeTarget[edge]];
+            double dy = y[adjacency.edgeSource[edge]] - y[adjacency.edgeTarget[edge]];
+            length += Math.sqrt(dx * dx + dy * dy);
+        }
+        if (length > 0) {
+            double scale = adjacency.edgeCount / length;
+            for (int node = 0; node < n; node++) {
+                x[node] *= scale;
+                y[node] *= scale;
+            }
+        }
+    }
+
+    private static void run(ForkJoinPool pool, int size, RangeAction.RangeTask task) {
+        if (pool != null) {
+            RangeAction.invoke(pool, size, 1, task);
+        } else {
+            task.run(0, size);
+        }
+    }
+
+    /**
+     * @return the squared graph distance from pivot to each node
+     */
+    private static double[] squaredDistances(Adjacency adjacency, int pivot, int[] queue) {
+        int n = adjacency.nodeCount;
+        int[] distance = new int[n];
+        Arrays.fill(distance, -1);
+        distance[pivot] = 0;
+        queue[0] = pivot;
+        int queueEnd = 1;
+        for (int head = 0; head < queueEnd; head++) {
+            int node = queue[head];
+            for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                int neighbour = adjacency.neighbours[i];
+                if (distance[neighbour] == -1) {
+                    distance[neighbour] = distance[node] + 1;
+                    queue[queueEnd++] = neighbour;
+                }
+            }
+        }
+
+        int unreachable = distance[queue[queueEnd - 1]] + 1;
+        double[] squared = new double[n];
+        for (int node = 0; node < n; node++) {
+            double d = distance[node] == -1 ? unreachable : distance[node];
+            squared[node] = d * d;
+        }
+        return squared;
+    }
+
+    /**
+     * Replaces each entry by -1/2 (entry - row mean - column mean + mean of all entries)
+     */
+    private static void doubleCenter(double[][] c, int n) {
+        int pivots = c.length;
+        double[] columnMean = new double[pivots];
+        double[] rowMean = new double[n];
+        double mean = 0;
+        for (int p = 0; p < pivots; p++) {
+            for (int node = 0; node < n; node++) {
+                columnMean[p] += c[p][node];
+                rowMean[node] += c[p][node];
+            }
+            mean += columnMean[p];
+            columnMean[p] /= n;
+        }
+        mean /= (double) n * pivots;
+        for (int node = 0; node < n; node++) {
+            rowMean[node] /= pivots;
+        }
+        for (int p = 0; p < pivots; p++) {
+            for (int node = 0; node < n; node++) {
+                c[p][node] = -0.5 * (c[p][node] - rowMean[node] - columnMean[p] + mean);
+            }
+        }
+    }
+
+    /**
+     * @return the unit eigenvector of the symmetric matrix with the largest eigenvalue, orthogonal to other if given
+     */
+    private static double[] dominantEigenvector(double[][] matrix, double[] other) {
+        int size = matrix.length;
+        double[] vector = new double[size];
+        for (int i = 0; i < size; i++) {
+            // varying entries, so the start is not orthogonal to the result for symmetric graphs
+            vector[i] = 1 + i % 3;
+        }
+        normalize(vector, other);
+        double[] next = new double[size];
+        for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+            for (int i = 0; i < size; i++) {
+                double sum = 0;
+                for (int j = 0; j < size; j++) {
+                    sum += matrix[i][j] * vector[j];
+                }
+                next[i] = sum;
+            }
+            if (!normalize(next, other)) {
+                break;
+            }
+            double[] swap = vector;
+            vector = next;
+            next = swap;
+        }
+        return vector;
+    }
+
+    /**
+     * Removes the part of vector in the direction of the unit vector other, if given, and scales it to length one
+     *
+     * @return false if nothing was left
+     */
+    private static boolean normalize(double[] vector, double[] other) {
+        if (other != null) {
+            double dot = 0;
+            for (int i = 0; i < vector.length; i++) {
+                dot += vector[i] * other[i];
+            }
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] -= dot * other[i];
+            }
+        }
+        double norm = 0;
+        for (double value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        if (norm == 0) {
+            return false;
+        }
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+        return true;
+    }
+
+    private static void project(double[][] c, double[] vector, double[] coordinate, int n) {
+        for (int node = 0; node < n; node++) {
+            double sum = 0;
+            for (int p = 0; p < c.length; p++) {
+                sum += c[p][node] * vector[p];
+            }
+            coordinate[node] = sum;
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.eclipse.elk.graph.ElkNode;
+
+/**
+ * Streams the final positions of the children of a layout graph into a memory mapped file.
+ *
+ * The file holds the x and y coordinate of the top left corner of each child in the order of the children as little
+ * endian doubles, 16 bytes per child and nothing else. It is written through the page cache in windows of at most
+ * {@link #WINDOW} bytes, so only one window is mapped at a time and nothing of the size of the graph is allocated on
+ * the heap.
+ */
+final class PositionFile {
+
+    /**
+     * bytes mapped at once, a multiple of 16 so no child is split between two windows
+     */
+    private static final int WINDOW = 1 << 26;
+
+    private PositionFile() {
+    }
+
+    /**
+     * Writes the positions of nodes to the file at path, replacing its content
+     */
+    static void write(String path, List<ElkNode> nodes) {
+        long size = 16L * nodes.size();
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            int node = 0;
+            for (long start = 0; start < size; start += WINDOW) {
+                MappedByteBuffer window = channel.map(MapMode.READ_WRITE, start, Math.min(WINDOW, size - start));
+                window.order(ByteOrder.LITTLE_ENDIAN);
+                while (window.hasRemaining()) {
+                    ElkNode child = nodes.get(node++);
+                    window.putDouble(child.getX());
+                    window.putDouble(child.getY());
+                }
+                window.force();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,265 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+
+/**
+ * A Barnes-Hut quad tree over a set of node positions.
+ *
+ * The tree is stored in flat arrays so it can be rebuilt every iteration without creating new objects once the
+ * arrays have grown to the size of the graph. Cells are split until they contain at most {@link #LEAF_SIZE} nodes,
+ * for each cell the total mass and the center of mass is stored.
+ */
+class QuadTree {
+
+    /**
+     * maximum amount of nodes in a leaf, leafs are calculated exactly
+     */
+    private static final int LEAF_SIZE = 4;
+
+    /**
+     * coinciding nodes can not be separated, stop splitting at this depth
+     */
+    private static final int MAX_DEPTH = 32;
+
+    private static final int NO_CHILD = -1;
+
+    // node positions and the node indices sorted by the cell they are in
+    private double[] posX = new double[0];
+    private double[] posY = new double[0];
+    private int[] index = new int[0];
+    private int size;
+
+    // per cell data
+    private int[] first = new int[0];
+    private int[] last = new int[0];
+    private int[] children = new int[0];
+    private double[] cellX = new double[0];
+    private double[] cellY = new double[0];
+    private double[] cellSize = new double[0];
+    private double[] massX = new double[0];
+    private double[] massY = new double[0];
+    private double[] mass = new double[0];
+    private int cellCount;
+
+    // the resulting repulsion for each node
+    private double[] forceX = new double[0];
+    private double[] forceY = new double[0];
+
+    /**
+     * Prepares the tree for n nodes, positions need to be set by {@link #setPosition(int, double, double)} before
+     * calling {@link #build()}
+     */
+    public void reset(int n) {
+        if (posX.length < n) {
+            posX = new double[n];
+            posY = new double[n];
+            index = new int[n];
+            forceX = new double[n];
+            forceY = new double[n];
+        }
+        size = n;
+    }
+
+    public void setPosition(int node, double x, double y) {
+        posX[node] = x;
+        posY[node] = y;
+    }
+
+    /**
+     * Copies the first n positions of x and y and builds the tree for them
+     */
+    public void build(double[] x, double[] y, int n) {
+        reset(n);
+        System.arraycopy(x, 0, posX, 0, n);
+        System.arraycopy(y, 0, posY, 0, n);
+        build();
+    }
+
+    /**
+     * Builds the tree over the positions set since the last reset
+     */
+    public void build() {
+        cellCount = 0;
+        if (size == 0) {
+            return;
+        }
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            index[i] = i;
+            minX = Math.min(minX, posX[i]);
+            minY = Math.min(minY, posY[i]);
+            maxX = Math.max(maxX, posX[i]);
+            maxY = Math.max(maxY, posY[i]);
+        }
+
+        // the root is a square containing all nodes
+        int root = createCell(0, size, minX, minY, Math.max(maxX - minX, maxY - minY));
+        buildCell(root, 0);
+    }
+
+    private int createCell(int from, int to, double x, double y, double cellSide) {
+        if (cellCount == first.length) {
+            int capacity = Math.max(16, cellCount * 2);
+            first = Arrays.copyOf(first, capacity);
+            last = Arrays.copyOf(last, capacity);
+            children = Arrays.copyOf(children, capacity * 4);
+            cellX = Arrays.copyOf(cellX, capacity);
+            cellY = Arrays.copyOf(cellY, capacity);
+            cellSize = Arrays.copyOf(cellSize, capacity);
+            massX = Arrays.copyOf(massX, capacity);
+            massY = Arrays.copyOf(massY, capacity);
+            mass = Arrays.copyOf(mass, capacity);
+        }
+        int cell = cellCount++;
+        first[cell] = from;
+        last[cell] = to;
+        cellX[cell] = x;
+        cellY[cell] = y;
+        cellSize[cell] = cellSide;
+        Arrays.fill(children, cell * 4, cell * 4 + 4, NO_CHILD);
+        return cell;
+    }
+
+    private void buildCell(int cell, int depth) {
+        int from = first[cell];
+        int to = last[cell];
+
+        if (to - from <= LEAF_SIZE || depth >= MAX_DEPTH) {
+            double sumX = 0, sumY = 0;
+            for (int i = from; i < to; i++) {
+                sumX += posX[index[i]];
+                sumY += posY[index[i]];
+            }
+            mass[cell] = to - from;
+            massX[cell] = sumX / (to - from);
+            massY[cell] = sumY / (to - from);
+            return;
+        }
+
+        double half = cellSize[cell] / 2;
+        double midX = cellX[cell] + half;
+        double midY = cellY[cell] + half;
+
+        // partition into left/right and each half into top/bottom
+        int splitX = partition(from, to, midX, true);
+        int splitLeft = partition(from, splitX, midY, false);
+        int splitRight = partition(splitX, to, midY, false);
+
+        double sumX = 0, sumY = 0, sumMass = 0;
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int quadrantFrom = quadrant == 0 ? from : quadrant == 1 ? splitLeft : quadrant == 2 ? splitX : splitRight;
+            int quadrantTo = quadrant == 0 ? splitLeft : quadrant == 1 ? splitX : quadrant == 2 ? splitRight : to;
+            if (quadrantFrom == quadrantTo) {
+                continue;
+            }
+            int child = createCell(quadrantFrom, quadrantTo, quadrant < 2 ? cellX[cell] : midX,
+                    quadrant % 2 == 0 ? cellY[cell] : midY, half);
+            children[cell * 4 + quadrant] = child;
+            buildCell(child, depth + 1);
+            sumMass += mass[child];
+            sumX += massX[child] * mass[child];
+            sumY += massY[child] * mass[child];
+        }
+        mass[cell] = sumMass;
+        massX[cell] = sumX / sumMass;
+        massY[cell] = sumY / sumMass;
+    }
+
+    /**
+     * Reorders index[from, to) so that all nodes below split in the given dimension come first
+     *
+     * @return the first index with a node not below split
+     */
+    private int partition(int from, int to, double split, boolean horizontal) {
+        double[] pos = horizontal ? posX : posY;
+        int lo = from;
+        int hi = to - 1;
+        while (lo <= hi) {
+            if (pos[index[lo]] < split) {
+                lo++;
+            } else {
+                int tmp = index[lo];
+                index[lo] = index[hi];
+                index[hi--] = tmp;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Calculates the repulsion node experiences from all other nodes in the tree, groups of nodes in a cell are
+     * approximated by their center of mass when cellSize/distance is below theta.
+     *
+     * The result can be read using {@link #getForceX(int)} and {@link #getForceY(int)}, calculating different nodes
+     * concurrently is safe. Nodes at the same position are separated by {@link PairJitter} using seed and iteration.
+     */
+    public void calculateRepulsion(
+            int node, ForceEnum forceFunctions, double k, double theta, long seed, int iteration) {
+        forceX[node] = 0;
+        forceY[node] = 0;
+        if (cellCount > 0) {
+            calculateRepulsion(0, node, forceFunctions, k, theta * theta, seed, iteration);
+        }
+    }
+
+    private void calculateRepulsion(
+            int cell, int node, ForceEnum forceFunctions, double k, double thetaSquared, long seed, int iteration) {
+        double x = posX[node];
+        double y = posY[node];
+
+        if (children[cell * 4] == NO_CHILD && children[cell * 4 + 1] == NO_CHILD
+                && children[cell * 4 + 2] == NO_CHILD && children[cell * 4 + 3] == NO_CHILD) {
+            // leaf, calculate exactly
+            for (int i = first[cell]; i < last[cell]; i++) {
+                int other = index[i];
+                if (other != node) {
+                    double dx = x - posX[other];
+                    double dy = y - posY[other];
+                    if (dx == 0 && dy == 0) {
+                        dx = PairJitter.offset(seed, iteration, node, other, 0);
+                        dy = PairJitter.offset(seed, iteration, node, other, 1);
+                    }
+                    addRepulsion(node, dx, dy, 1, forceFunctions, k);
+                }
+            }
+            return;
+        }
+
+        double dx = x - massX[cell];
+        double dy = y - massY[cell];
+        double side = cellSize[cell];
+        boolean contained = x >= cellX[cell] && x <= cellX[cell] + side && y >= cellY[cell]
+                && y <= cellY[cell] + side;
+
+        if (!contained && side * side < thetaSquared * (dx * dx + dy * dy)) {
+            // far enough away, approximate by center of mass
+            addRepulsion(node, dx, dy, mass[cell], forceFunctions, k);
+            return;
+        }
+
+        for (int quadrant = 0; quadrant < 4; quadrant++) {
+            int child = children[cell * 4 + quadrant];
+            if (child != NO_CHILD) {
+                calculateRepulsion(child, node, forceFunctions, k, thetaSquared, seed, iteration);
+            }
+        }
+    }
+
+    private void addRepulsion(int node, double dx, double dy, double weight, ForceEnum forceFunctions, double k) {
+        double distance = Math.sqrt(dx * dx + dy * dy);
+        double force = weight * forceFunctions.repulsionForce(distance, k) / distance;
+        forceX[node] += dx * force;
+        forceY[node] += dy * force;
+    }
+
+    public double getForceX(int node) {
+        return forceX[node];
+    }
+
+    public double getForceY(int node) {
+        return forceY[node];
+    }
+
+}
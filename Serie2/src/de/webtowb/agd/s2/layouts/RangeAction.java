@@ -0,0 +1,59 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs a task over the index range [from, to) by recursively splitting the range in halves until at most chunkSize
+ * indices are left, each chunk is then processed by one task.
+ */
+class RangeAction extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Processes all indices in [from, to)
+     */
+    @FunctionalInterface
+    interface RangeTask {
+        void run(int from, int to);
+    }
+
+    private final int from;
+    private final int to;
+    private final int chunkSize;
+    private final RangeTask task;
+
+    private RangeAction(int from, int to, int chunkSize, RangeTask task) {
+        this.from = from;
+        this.to = to;
+        this.chunkSize = chunkSize;
+        this.task = task;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= chunkSize) {
+            task.run(from, to);
+        } else {
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeAction(from, middle, chunkSize, task), new RangeAction(middle, to, chunkSize, task));
+        }
+    }
+
+    /**
+     * Runs task over [0, size) in pool and waits for all chunks to be finished
+     */
+    static void invoke(ForkJoinPool pool, int size, int chunkSize, RangeTask task) {
+        if (size <= chunkSize) {
+            // not worth handing over to the pool
+            task.run(0, size);
+        } else if (getPool() == pool) {
+            // called from a task of pool, e.g. one of several components laid out at the same time
+            new RangeAction(0, size, Math.max(1, chunkSize), task).invoke();
+        } else {
+            pool.invoke(new RangeAction(0, size, Math.max(1, chunkSize), task));
+        }
+    }
+
+}
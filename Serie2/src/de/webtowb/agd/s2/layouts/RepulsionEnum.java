@@ -3,5 +3,7 @@ package de.webtowb.agd.s2.layouts;
 public enum RepulsionEnum {
     REPULSE_ALL,
     GRID3X3,
-    RADIUS2K
+    RADIUS2K,
+    BARNES_HUT,
+    SAMPLED
 }
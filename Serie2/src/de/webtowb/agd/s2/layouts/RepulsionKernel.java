@@ -0,0 +1,154 @@
+package de.webtowb.agd.s2.layouts;
+
+/**
+ * A repulsion loop over positions stored one after another, written so the JIT can keep four neighbours in flight.
+ *
+ * The repulsion force divided by the distance is repulsionScale / distance^2, so neither a square root nor a branch
+ * per neighbour is needed. Four independent sums are kept and added up at the end, the result therefore differs from
+ * the one neighbour at a time loop in the last bits, but does not depend on threading.
+ *
+ * The float variant reads positions of half the size and calculates in float, only the sums are added to the double
+ * displacement. Distances are then accurate to about 7 digits of the coordinates.
+ *
+ * Both variants are the same loop, written out once per primitive type since generics cannot abstract over them. A
+ * change to one has to be made to the other, FloatPrecisionTest#kernelsAgree checks that they still give the same
+ * forces.
+ */
+final class RepulsionKernel {
+
+    private RepulsionKernel() {
+    }
+
+    /**
+     * Adds the repulsion of the positions in [from, to) of xs and ys that are no further from (x, y) than the square
+     * root of maxDistanceSquared to dispX[node] and dispY[node]. Positions equal to (x, y) are skipped.
+     *
+     * @param scale
+     *            the {@link ForceEnum#repulsionScale(double)} to use
+     *
+     * @return the number of positions equal to (x, y) in the range
+     * @see #accumulate(float, float, float[], float[], int, int, float, float, double[], double[], int) the float copy
+     *      of this loop, keep both in sync
+     */
+    static int accumulate(double x, double y, double[] xs, double[] ys, int from, int to, double scale,
+            double maxDistanceSquared, double[] dispX, double[] dispY, int node) {
+        double forceX0 = 0, forceX1 = 0, forceX2 = 0, forceX3 = 0;
+        double forceY0 = 0, forceY1 = 0, forceY2 = 0, forceY3 = 0;
+        int coincident = 0;
+
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            double dx0 = x - xs[i];
+            double dy0 = y - ys[i];
+            double dx1 = x - xs[i + 1];
+            double dy1 = y - ys[i + 1];
+            double dx2 = x - xs[i + 2];
+            double dy2 = y - ys[i + 2];
+            double dx3 = x - xs[i + 3];
+            double dy3 = y - ys[i + 3];
+
+            double distanceSquared0 = dx0 * dx0 + dy0 * dy0;
+            double distanceSquared1 = dx1 * dx1 + dy1 * dy1;
+            double distanceSquared2 = dx2 * dx2 + dy2 * dy2;
+            double distanceSquared3 = dx3 * dx3 + dy3 * dy3;
+
+            double force0 = distanceSquared0 > 0 && distanceSquared0 <= maxDistanceSquared
+                    ? scale / distanceSquared0 : 0;
+            double force1 = distanceSquared1 > 0 && distanceSquared1 <= maxDistanceSquared
+                    ? scale / distanceSquared1 : 0;
+            double force2 = distanceSquared2 > 0 && distanceSquared2 <= maxDistanceSquared
+                    ? scale / distanceSquared2 : 0;
+            double force3 = distanceSquared3 > 0 && distanceSquared3 <= maxDistanceSquared
+                    ? scale / distanceSquared3 : 0;
+
+            forceX0 += dx0 * force0;
+            forceY0 += dy0 * force0;
+            forceX1 += dx1 * force1;
+            forceY1 += dy1 * force1;
+            forceX2 += dx2 * force2;
+            forceY2 += dy2 * force2;
+            forceX3 += dx3 * force3;
+            forceY3 += dy3 * force3;
+
+            coincident += (distanceSquared0 == 0 ? 1 : 0) + (distanceSquared1 == 0 ? 1 : 0)
+                    + (distanceSquared2 == 0 ? 1 : 0) + (distanceSquared3 == 0 ? 1 : 0);
+        }
+        for (; i < to; i++) {
+            double dx = x - xs[i];
+            double dy = y - ys[i];
+            double distanceSquared = dx * dx + dy * dy;
+            double force = distanceSquared > 0 && distanceSquared <= maxDistanceSquared ? scale / distanceSquared : 0;
+            forceX0 += dx * force;
+            forceY0 += dy * force;
+            coincident += distanceSquared == 0 ? 1 : 0;
+        }
+
+        dispX[node] += (forceX0 + forceX1) + (forceX2 + forceX3);
+        dispY[node] += (forceY0 + forceY1) + (forceY2 + forceY3);
+        return coincident;
+    }
+
+    /**
+     * Like {@link #accumulate(double, double, double[], double[], int, int, double, double, double[], double[], int)}
+     * in float precision, positions equal to (x, y) as floats are skipped. A copy of that loop line by line, keep both
+     * in sync.
+     */
+    static int accumulate(float x, float y, float[] xs, float[] ys, int from, int to, float scale,
+            float maxDistanceSquared, double[] dispX, double[] dispY, int node) {
+        float forceX0 = 0, forceX1 = 0, forceX2 = 0, forceX3 = 0;
+        float forceY0 = 0, forceY1 = 0, forceY2 = 0, forceY3 = 0;
+        int coincident = 0;
+
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            float dx0 = x - xs[i];
+            float dy0 = y - ys[i];
+            float dx1 = x - xs[i + 1];
+            float dy1 = y - ys[i + 1];
+            float dx2 = x - xs[i + 2];
+            float dy2 = y - ys[i + 2];
+            float dx3 = x - xs[i + 3];
+            float dy3 = y - ys[i + 3];
+
+            float distanceSquared0 = dx0 * dx0 + dy0 * dy0;
+            float distanceSquared1 = dx1 * dx1 + dy1 * dy1;
+            float distanceSquared2 = dx2 * dx2 + dy2 * dy2;
+            float distanceSquared3 = dx3 * dx3 + dy3 * dy3;
+
+            float force0 = distanceSquared0 > 0 && distanceSquared0 <= maxDistanceSquared
+                    ? scale / distanceSquared0 : 0;
+            float force1 = distanceSquared1 > 0 && distanceSquared1 <= maxDistanceSquared
+                    ? scale / distanceSquared1 : 0;
+            float force2 = distanceSquared2 > 0 && distanceSquared2 <= maxDistanceSquared
+                    ? scale / distanceSquared2 : 0;
+            float force3 = distanceSquared3 > 0 && distanceSquared3 <= maxDistanceSquared
+                    ? scale / distanceSquared3 : 0;
+
+            forceX0 += dx0 * force0;
+            forceY0 += dy0 * force0;
+            forceX1 += dx1 * force1;
+            forceY1 += dy1 * force1;
+            forceX2 += dx2 * force2;
+            forceY2 += dy2 * force2;
+            forceX3 += dx3 * force3;
+            forceY3 += dy3 * force3;
+
+            coincident += (distanceSquared0 == 0 ? 1 : 0) + (distanceSquared1 == 0 ? 1 : 0)
+                    + (distanceSquared2 == 0 ? 1 : 0) + (distanceSquared3 == 0 ? 1 : 0);
+        }
+        for (; i < to; i++) {
+            float dx = x - xs[i];
+            float dy = y - ys[i];
+            float distanceSquared = dx * dx + dy * dy;
+            float force = distanceSquared > 0 && distanceSquared <= maxDistanceSquared ? scale / distanceSquared : 0;
+            forceX0 += dx * force;
+            forceY0 += dy * force;
+            coincident += distanceSquared == 0 ? 1 : 0;
+        }
+
+        dispX[node] += (forceX0 + forceX1) + (forceX2 + forceX3);
+        dispY[node] += (forceY0 + forceY1) + (forceY2 + forceY3);
+        return coincident;
+    }
+
+}
@@ -0,0 +1,199 @@
+package de.webtowb.agd.s2.layouts;
+
+import org.eclipse.elk.graph.ElkNode;
+
+import de.webtwob.adg.s2.layouts.options.FruchtermanReingoldOptions;
+
+/**
+ * The state of the force directed simulation stored in primitive arrays indexed by the node id.
+ *
+ * The node id is the position of the node in the children of the layout graph. The state is loaded once before the
+ * first iteration and written back to the nodes once after the last iteration, in between the ElkNodes are not
+ * touched. The edges are copied into an {@link Adjacency}.
+ *
+ * Everything one run of the simulation changes is kept here, so independent states, e.g. the connected components of
+ * a graph, can be simulated at the same time.
+ */
+class SimulationState {
+
+    final ElkNode[] nodes;
+    final int nodeCount;
+
+    double[] x;
+    double[] y;
+    // the positions written by a double buffered iteration, null until the first one
+    double[] nextX;
+    double[] nextY;
+    final double[] dispX;
+    final double[] dispY;
+    final double[] width;
+    final double[] height;
+
+    // edges between two different nodes of the graph
+    Adjacency adjacency;
+
+    // the nodes are kept inside [0, frameWidth] x [0, frameHeight]
+    final double frameWidth;
+    final double frameHeight;
+
+    final CellGrid grid;
+    // only built for RepulsionEnum.BARNES_HUT
+    final QuadTree quadTree = new QuadTree();
+
+    // the current iteration, used for deterministic jitter
+    int iteration;
+
+    // the nodes whose forces are calculated, null if all are
+    ActiveSet active;
+    // the nodes allowed to move, null if all are
+    boolean[] movable;
+    // collects the statistics of each iteration, null if nobody listens
+    Telemetry telemetry;
+
+    // the current id of each node by the id it was created with, null if never renumbered
+    private int[] currentId;
+
+    private SimulationState(ElkNode[] nodes, int nodeCount, Adjacency adjacency, double frameWidth,
+            double frameHeight, double gridSectionSize) {
+        this.nodes = nodes;
+        this.nodeCount = nodeCount;
+        x = new double[nodeCount];
+        y = new double[nodeCount];
+        dispX = new double[nodeCount];
+        dispY = new double[nodeCount];
+        width = new double[nodeCount];
+        height = new double[nodeCount];
+
+        this.adjacency = adjacency;
+
+        this.frameWidth = frameWidth;
+        this.frameHeight = frameHeight;
+        grid = new CellGrid(frameWidth, frameHeight, gridSectionSize, nodeCount);
+    }
+
+    /**
+     * Copies the positions and sizes of the children of layoutGraph and the edges between them
+     *
+     * @param gridSectionSize
+     *            the side length of a grid section
+     */
+    static SimulationState load(ElkNode layoutGraph, double frameWidth, double frameHeight, double gridSectionSize) {
+        ElkNode[] nodes = layoutGraph.getChildren().toArray(new ElkNode[0]);
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i].setProperty(FruchtermanReingoldOptions.OUTPUTS_NODE_INDEX, i);
+        }
+
+        return of(nodes, Adjacency.of(layoutGraph), frameWidth, frameHeight, gridSectionSize);
+    }
+
+    /**
+     * Copies the positions and sizes of nodes, the node id is the position in nodes
+     *
+     * @param adjacency
+     *            the edges between nodes using these ids
+     */
+    static SimulationState of(ElkNode[] nodes, Adjacency adjacency, double frameWidth, double frameHeight,
+            double gridSectionSize) {
+        SimulationState state = new SimulationState(nodes, nodes.length, adjacency, frameWidth, frameHeight,
+                gridSectionSize);
+
+        for (int i = 0; i < nodes.length; i++) {
+            state.x[i] = nodes[i].getX();
+            state.y[i] = nodes[i].getY();
+            state.width[i] = nodes[i].getWidth();
+            state.height[i] = nodes[i].getHeight();
+        }
+
+        return state;
+    }
+
+    /**
+     * Creates a state that is not backed by ElkNodes, e.g. a coarse level of a multilevel layout. Positions have to be
+     * filled in by the caller and {@link #store(boolean)} must not be called.
+     */
+    static SimulationState create(int nodeCount, Adjacency adjacency, double frameWidth, double frameHeight,
+            double gridSectionSize) {
+        return new SimulationState(null, nodeCount, adjacency, frameWidth, frameHeight, gridSectionSize);
+    }
+
+    /**
+     * Renumbers the nodes, moving all per node values and the edges to the new ids. The grid and the active set are
+     * not updated.
+     *
+     * @param order
+     *            the old id of each new id
+     * @return the new id of each old id
+     */
+    int[] renumber(int[] order) {
+        int[] newId = NodeOrder.inverse(order);
+        if (nodes != null) {
+            NodeOrder.permute(nodes, order);
+        }
+        NodeOrder.permute(x, order);
+        NodeOrder.permute(y, order);
+        NodeOrder.permute(dispX, order);
+        NodeOrder.permute(dispY, order);
+        NodeOrder.permute(width, order);
+        NodeOrder.permute(height, order);
+        if (movable != null) {
+            NodeOrder.permute(movable, order);
+        }
+        adjacency = adjacency.renumber(newId);
+
+        if (currentId == null) {
+            currentId = newId.clone();
+        } else {
+            for (int node = 0; node < nodeCount; node++) {
+                currentId[node] = newId[currentId[node]];
+            }
+        }
+        return newId;
+    }
+
+    /**
+     * @return the current id of the node that had id node when this state was created
+     */
+    int currentId(int node) {
+        return currentId == null ? node : currentId[node];
+    }
+
+    /**
+     * Makes nextX and nextY the current positions and the current positions the next ones
+     */
+    void swapPositions() {
+        double[] swap = x;
+        x = nextX;
+        nextX = swap;
+        swap = y;
+        y = nextY;
+        nextY = swap;
+    }
+
+    /**
+     * Allocates nextX and nextY if not done yet
+     */
+    void allocateNextPositions() {
+        if (nextX == null) {
+            nextX = new double[nodeCount];
+            nextY = new double[nodeCount];
+        }
+    }
+
+    /**
+     * Writes the positions back to the nodes
+     *
+     * @param outputs
+     *            whether to write the last displacement and grid section as well, each adds a KVector to every node
+     */
+    void store(boolean outputs) {
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i].setLocation(x[i], y[i]);
+            if (outputs) {
+                nodes[i].getProperty(FruchtermanReingoldOptions.OUTPUTS_DISPLACEMENT_VECTOR).set(dispX[i], dispY[i]);
+                nodes[i].getProperty(FruchtermanReingoldOptions.OUTPUTS_GRID_SECTION)
+                        .set(grid.getColumnOf(i), grid.getRowOf(i));
+            }
+        }
+    }
+
+}
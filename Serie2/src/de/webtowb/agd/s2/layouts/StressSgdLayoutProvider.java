@@ -0,0 +1,185 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.elk.core.AbstractLayoutProvider;
+import org.eclipse.elk.core.util.IElkProgressMonitor;
+import org.eclipse.elk.graph.ElkEdge;
+import org.eclipse.elk.graph.ElkNode;
+
+import de.webtwob.adg.s2.layouts.options.StressSgdOptions;
+
+/**
+ * A stress layout by stochastic gradient descent as described in "Graph Drawing by Stochastic Gradient Descent" by
+ * Zheng, Pawar and Goodman.
+ *
+ * Instead of moving all nodes by the gradient of the whole stress, each term of the stress, see {@link StressTerms},
+ * moves its two nodes directly towards their desired distance, by a step size that is annealed exponentially from
+ * 1 / smallest weight in the first to epsilon / largest weight in the last epoch. The terms are visited in a new random
+ * order each epoch. This converges in a few dozen epochs.
+ *
+ * In parallel the terms are split into shards that are processed at the same time Hogwild style, i.e. without any
+ * locking: two shards may update the position of the same node at the same time and one of the updates gets lost,
+ * which barely matters as every node is moved by many terms. Parallel runs are therefore not reproducible, serial runs
+ * are.
+ *
+ * The layout is calculated in hops and scaled by edgeLength afterwards, nodes are placed by their centers and node
+ * sizes are not taken into account.
+ */
+public class StressSgdLayoutProvider extends AbstractLayoutProvider {
+
+    private int epochs = 30;
+    private double edgeLength = 100;
+    private double epsilon = 0.1;
+    private int sparseThreshold = 2000;
+    private int sparsePivots = 50;
+    private boolean runParallel = false;
+    private int shardSize = 4096;
+    private long seed = 42;
+
+    /**
+     * the step size of the last epoch is at least this relative to the largest weight, so it stays positive
+     */
+    private static final double MIN_EPSILON = 1e-6;
+
+    private ForkJoinPool pool = new ForkJoinPool();
+
+    private void loadOptions(ElkNode layoutGraph) {
+        epochs = layoutGraph.getProperty(StressSgdOptions.SETTINGS_EPOCHS);
+        edgeLength = layoutGraph.getProperty(StressSgdOptions.SETTINGS_EDGE_LENGTH);
+        epsilon = layoutGraph.getProperty(StressSgdOptions.SETTINGS_EPSILON);
+        sparseThreshold = layoutGraph.getProperty(StressSgdOptions.SETTINGS_SPARSE_THRESHOLD);
+        sparsePivots = layoutGraph.getProperty(StressSgdOptions.SETTINGS_SPARSE_PIVOTS);
+        runParallel = layoutGraph.getProperty(StressSgdOptions.SETTINGS_PARALLEL);
+        shardSize = layoutGraph.getProperty(StressSgdOptions.SETTINGS_SHARD_SIZE);
+        seed = layoutGraph.getProperty(StressSgdOptions.SETTINGS_SEED);
+
+        int parallelism = layoutGraph.getProperty(StressSgdOptions.SETTINGS_PARALLELISM);
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        if (pool.getParallelism() != parallelism) {
+            pool.shutdown();
+            pool = new ForkJoinPool(parallelism);
+        }
+    }
+
+    @Override
+    public void layout(ElkNode layoutGraph, IElkProgressMonitor progressMonitor) {
+        progressMonitor.begin("Stress SGD", epochs + 1);
+        loadOptions(layoutGraph);
+
+        List<ElkNode> children = layoutGraph.getChildren();
+        int n = children.size();
+        IElkProgressMonitor subTask = progressMonitor.subTask(1);
+        subTask.begin("Shortest Paths", n);
+        Adjacency adjacency = Adjacency.ofChildren(layoutGraph);
+        ForkJoinPool searchPool = runParallel ? pool : null;
+        StressTerms terms = n <= sparseThreshold && StressTerms.allPairsCount(n) < Integer.MAX_VALUE
+                ? StressTerms.allPairs(adjacency, searchPool)
+                : StressTerms.sparse(adjacency, sparsePivots, seed, searchPool);
+        terms.shuffle(0, terms.count, new SplittableRandom(seed));
+        subTask.done();
+
+        // random positions in a square of side sqrt(n) hops, so the mean distance is about that of a grid
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double side = Math.sqrt(n);
+        for (int node = 0; node < n; node++) {
+            x[node] = (PairJitter.hash(seed, 2 * node) >>> 11) * 0x1.0p-53 * side;
+            y[node] = (PairJitter.hash(seed, 2 * node + 1) >>> 11) * 0x1.0p-53 * side;
+        }
+
+        double maxStep = 1 / terms.minWeight();
+        double minStep = Math.max(epsilon, MIN_EPSILON) / terms.maxWeight();
+        double decay = epochs > 1 ? Math.log(maxStep / minStep) / (epochs - 1) : 0;
+        for (int epoch = 0; epoch < epochs && terms.count > 0; epoch++) {
+            subTask = progressMonitor.subTask(1);
+            subTask.begin(String.format("Epoch %d", epoch), terms.count);
+            double step = maxStep * Math.exp(-decay * epoch);
+            long epochSeed = PairJitter.hash(seed, epoch);
+            RangeAction.RangeTask task = (from, to) -> {
+                terms.shuffle(from, to, new SplittableRandom(PairJitter.hash(epochSeed, from)));
+                descend(terms, from, to, step, x, y);
+            };
+            if (runParallel) {
+                RangeAction.invoke(pool, terms.count, shardSize, task);
+            } else {
+                task.run(0, terms.count);
+            }
+            subTask.done();
+        }
+        layoutGraph.setProperty(StressSgdOptions.OUTPUTS_STRESS, terms.stress(x, y));
+
+        place(layoutGraph, x, y);
+        for (ElkEdge edge : layoutGraph.getContainedEdges()) {
+            FruchtermanReingoldLayoutProvider.routeEdge(edge);
+        }
+
+        progressMonitor.done();
+    }
+
+    /**
+     * Moves the nodes of each term in [from, to) towards the distance of the term, node i by a step of at most half
+     * the error if node j moves as well, else by at most the whole error
+     */
+    private void descend(StressTerms terms, int from, int to, double step, double[] x, double[] y) {
+        for (int term = from; term < to; term++) {
+            int i = (int) (terms.nodes[term] >>> 32);
+            int j = (int) terms.nodes[term];
+            double dx = x[i] - x[j];
+            double dy = y[i] - y[j];
+            double length = Math.sqrt(dx * dx + dy * dy);
+            if (length == 0) {
+                // a deterministic direction for nodes at the same position
+                dx = PairJitter.offset(seed, term, i, j, 0);
+                dy = PairJitter.offset(seed, term, i, j, 1);
+                length = Math.sqrt(dx * dx + dy * dy);
+            }
+            double error = (length - terms.distance[term]) / length;
+            double weightJ = terms.weightJ[term];
+            double share = weightJ > 0 ? 0.5 : 1;
+            double moveI = Math.min(terms.weightI[term] * step, 1) * share * error;
+            double moveJ = Math.min(weightJ * step, 1) * share * error;
+            x[i] -= moveI * dx;
+            y[i] -= moveI * dy;
+            x[j] += moveJ * dx;
+            y[j] += moveJ * dy;
+        }
+    }
+
+    /**
+     * Scales the centers by edgeLength and moves the children so the top left corner of their bounding box is at the
+     * origin, the layout graph gets the size of the bounding box
+     */
+    private void place(ElkNode layoutGraph, double[] x, double[] y) {
+        List<ElkNode> children = layoutGraph.getChildren();
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < children.size(); i++) {
+            ElkNode node = children.get(i);
+            minX = Math.min(minX, x[i] * edgeLength - node.getWidth() / 2);
+            minY = Math.min(minY, y[i] * edgeLength - node.getHeight() / 2);
+            maxX = Math.max(maxX, x[i] * edgeLength + node.getWidth() / 2);
+            maxY = Math.max(maxY, y[i] * edgeLength + node.getHeight() / 2);
+        }
+        if (children.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < children.size(); i++) {
+            ElkNode node = children.get(i);
+            node.setLocation(x[i] * edgeLength - node.getWidth() / 2 - minX,
+                    y[i] * edgeLength - node.getHeight() / 2 - minY);
+        }
+        layoutGraph.setDimensions(maxX - minX, maxY - minY);
+    }
+
+    @Override
+    public void dispose() {
+        pool.shutdown();
+        super.dispose();
+    }
+
+}
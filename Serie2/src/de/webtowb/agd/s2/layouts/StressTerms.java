@@ -0,0 +1,268 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The terms of the stress of a layout, each a pair of nodes with the distance they should have and the weight with
+ * which each of them is moved towards it. Distances are graph distances in hops.
+ *
+ * Term t connects node nodes[t] >>> 32 and node (int) nodes[t]. The stress of a layout X is the sum over all terms of
+ * weightI (|Xi - Xj| - distance)^2.
+ *
+ * {@link #allPairs} has one term per pair of nodes with weight 1 / distance^2 for both nodes. {@link #sparse} is the
+ * sparse stress model of Ortmann, Klimenta and Brandes: a term for each edge and a term from each node to each of a
+ * few pivots, which only moves the node and is weighted by the number of nodes the pivot stands for, i.e. the nodes
+ * of its region at most half the distance away from it. A region holds the nodes closer to its pivot than to any
+ * other, ties go to the pivot reaching them first in a breadth first search from all pivots at once.
+ *
+ * Nodes not reachable from a node are treated as one step further away than its furthest reachable node, like in
+ * {@link PivotMds}.
+ */
+final class StressTerms {
+
+    final int count;
+    final long[] nodes;
+    final float[] distance;
+    final float[] weightI;
+    final float[] weightJ;
+
+    private StressTerms(int count) {
+        this.count = count;
+        nodes = new long[count];
+        distance = new float[count];
+        weightI = new float[count];
+        weightJ = new float[count];
+    }
+
+    /**
+     * @return the number of terms {@link #allPairs} creates for nodeCount nodes
+     */
+    static long allPairsCount(int nodeCount) {
+        return (long) nodeCount * (nodeCount - 1) / 2;
+    }
+
+    /**
+     * @return a term for each pair of nodes, found by a breadth first search from each node
+     *
+     * @param pool
+     *            runs the searches in parallel, null to run them one after another
+     */
+    static StressTerms allPairs(Adjacency adjacency, ForkJoinPool pool) {
+        int n = adjacency.nodeCount;
+        StressTerms terms = new StressTerms((int) allPairsCount(n));
+        run(pool, n, (from, to) -> {
+            int[] distance = new int[n];
+            int[] queue = new int[n];
+            for (int source = from; source < to; source++) {
+                int unreachable = search(adjacency, source, distance, queue) + 1;
+                // the terms of source come after those of all lower nodes, each with its higher nodes
+                int term = (int) (allPairsCount(n) - allPairsCount(n - source));
+                for (int node = source + 1; node < n; node++) {
+                    int d = distance[node] == -1 ? unreachable : distance[node];
+                    terms.set(term++, node, source, d, 1f / ((float) d * d), 1f / ((float) d * d));
+                }
+            }
+        });
+        return terms;
+    }
+
+    /**
+     * @return the terms of the sparse stress model with pivotCount pivots, picked in a random order given by seed,
+     *         fewer if the terms would not fit into an array
+     *
+     * @param pool
+     *            runs the searches in parallel, null to run them one after another
+     */
+    static StressTerms sparse(Adjacency adjacency, int pivotCount, long seed, ForkJoinPool pool) {
+        int n = adjacency.nodeCount;
+        int pivots = (int) Math.min(Math.min(pivotCount, n),
+                (Integer.MAX_VALUE - 8L - adjacency.edgeCount) / Math.max(1, n - 1));
+
+        // the hash of a node in the upper and its id in the lower half, the first pivots after sorting are used
+        long[] order = new long[n];
+        for (int node = 0; node < n; node++) {
+            order[node] = (PairJitter.hash(seed, node) & 0xFFFFFFFF00000000L) | node;
+        }
+        Arrays.sort(order);
+        int[] pivot = new int[pivots];
+        for (int p = 0; p < pivots; p++) {
+            pivot[p] = (int) order[p];
+        }
+        int[][] regionAtMost = regions(adjacency, pivot);
+
+        StressTerms terms = new StressTerms(adjacency.edgeCount + pivots * (n - 1));
+        for (int edge = 0; edge < adjacency.edgeCount; edge++) {
+            terms.set(edge, adjacency.edgeSource[edge], adjacency.edgeTarget[edge], 1, 1, 1);
+        }
+        run(pool, pivots, (from, to) -> {
+            int[] distance = new int[n];
+            int[] queue = new int[n];
+            for (int p = from; p < to; p++) {
+                int unreachable = search(adjacency, pivot[p], distance, queue) + 1;
+                int[] atMost = regionAtMost[p];
+                int term = adjacency.edgeCount + p * (n - 1);
+                for (int node = 0; node < n; node++) {
+                    if (node == pivot[p]) {
+                        continue;
+                    }
+                    int d = distance[node] == -1 ? unreachable : distance[node];
+                    float weight = 1f / ((float) d * d);
+                    terms.set(term++, node, pivot[p], d, atMost[Math.min(d / 2, atMost.length - 1)] * weight, 0);
+                }
+            }
+        });
+        return terms;
+    }
+
+    private void set(int term, int i, int j, int hops, float weightI, float weightJ) {
+        nodes[term] = (long) i << 32 | j;
+        distance[term] = hops;
+        this.weightI[term] = weightI;
+        this.weightJ[term] = weightJ;
+    }
+
+    /**
+     * @return for each pivot the number of nodes of its region at most h hops away from it at index h
+     */
+    private static int[][] regions(Adjacency adjacency, int[] pivot) {
+        int n = adjacency.nodeCount;
+        int[] region = new int[n];
+        int[] distance = new int[n];
+        Arrays.fill(region, -1);
+        int[] queue = new int[n];
+        int queueEnd = 0;
+        for (int p = 0; p < pivot.length; p++) {
+            region[pivot[p]] = p;
+            queue[queueEnd++] = pivot[p];
+        }
+        for (int head = 0; head < queueEnd; head++) {
+            int node = queue[head];
+            for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                int neighbour = adjacency.neighbours[i];
+                if (region[neighbour] == -1) {
+                    region[neighbour] = region[node];
+                    distance[neighbour] = distance[node] + 1;
+                    queue[queueEnd++] = neighbour;
+                }
+            }
+        }
+
+        int[] radius = new int[pivot.length];
+        for (int head = 0; head < queueEnd; head++) {
+            int node = queue[head];
+            radius[region[node]] = Math.max(radius[region[node]], distance[node]);
+        }
+        int[][] atMost = new int[pivot.length][];
+        for (int p = 0; p < pivot.length; p++) {
+            atMost[p] = new int[radius[p] + 1];
+        }
+        for (int head = 0; head < queueEnd; head++) {
+            int node = queue[head];
+            atMost[region[node]][distance[node]]++;
+        }
+        for (int[] counts : atMost) {
+            for (int h = 1; h < counts.length; h++) {
+                counts[h] += counts[h - 1];
+            }
+        }
+        return atMost;
+    }
+
+    /**
+     * Writes the hops from source to each node to distance, -1 if not reachable
+     *
+     * @return the largest distance of a reachable node
+     */
+    private static int search(Adjacency adjacency, int source, int[] distance, int[] queue) {
+        Arrays.fill(distance, -1);
+        distance[source] = 0;
+        queue[0] = source;
+        int queueEnd = 1;
+        for (int head = 0; head < queueEnd; head++) {
+            int node = queue[head];
+            for (int i = adjacency.offset[node]; i < adjacency.offset[node + 1]; i++) {
+                int neighbour = adjacency.neighbours[i];
+                if (distance[neighbour] == -1) {
+                    distance[neighbour] = distance[node] + 1;
+                    queue[queueEnd++] = neighbour;
+                }
+            }
+        }
+        return distance[queue[queueEnd - 1]];
+    }
+
+    private static void run(ForkJoinPool pool, int size, RangeAction.RangeTask task) {
+        if (pool != null) {
+            RangeAction.invoke(pool, size, 1, task);
+        } else {
+            task.run(0, size);
+        }
+    }
+
+    /**
+     * @return the smallest positive weight of any term, 0 if there is none
+     */
+    double minWeight() {
+        double min = Double.POSITIVE_INFINITY;
+        for (int term = 0; term < count; term++) {
+            if (weightI[term] > 0) {
+                min = Math.min(min, weightI[term]);
+            }
+            if (weightJ[term] > 0) {
+                min = Math.min(min, weightJ[term]);
+            }
+        }
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return the largest weight of any term
+     */
+    double maxWeight() {
+        double max = 0;
+        for (int term = 0; term < count; term++) {
+            max = Math.max(max, Math.max(weightI[term], weightJ[term]));
+        }
+        return max;
+    }
+
+    /**
+     * Puts the terms in [from, to) into a random order
+     */
+    void shuffle(int from, int to, SplittableRandom random) {
+        for (int t = to - 1; t > from; t--) {
+            int other = from + random.nextInt(t - from + 1);
+            long swapNodes = nodes[t];
+            nodes[t] = nodes[other];
+            nodes[other] = swapNodes;
+            float swap = distance[t];
+            distance[t] = distance[other];
+            distance[other] = swap;
+            swap = weightI[t];
+            weightI[t] = weightI[other];
+            weightI[other] = swap;
+            swap = weightJ[t];
+            weightJ[t] = weightJ[other];
+            weightJ[other] = swap;
+        }
+    }
+
+    /**
+     * @return the stress of the layout with node i at (x[i], y[i]), distances in hops
+     */
+    double stress(double[] x, double[] y) {
+        double stress = 0;
+        for (int term = 0; term < count; term++) {
+            int i = (int) (nodes[term] >>> 32);
+            int j = (int) nodes[term];
+            double dx = x[i] - x[j];
+            double dy = y[i] - y[j];
+            double error = Math.sqrt(dx * dx + dy * dy) - distance[term];
+            stress += weightI[term] * error * error;
+        }
+        return stress;
+    }
+
+}
@@ -0,0 +1,76 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.Arrays;
+
+/**
+ * Collects the {@link IterationStatistics} of the iterations run on one {@link SimulationState} and hands them to an
+ * {@link IterationListener}.
+ *
+ * A state only has a collector if a listener is set, all calls are guarded by a null check, so nothing is measured
+ * otherwise. The time of the iteration is split into phases, each call of {@link #endPhase(int)} adds the time since
+ * the last one to a phase.
+ */
+class Telemetry {
+
+    static final int REPULSION = 0;
+    static final int ATTRACTION = 1;
+    static final int MOVEMENT = 2;
+    static final int GRID = 3;
+
+    private final IterationListener listener;
+
+    // the squared force on each node in the current iteration
+    private final double[] forceSquared;
+    private final long[] nanos = new long[4];
+    private long phaseStart;
+    private long repulsionPairs;
+
+    Telemetry(IterationListener listener, int nodeCount) {
+        this.listener = listener;
+        forceSquared = new double[nodeCount];
+    }
+
+    /**
+     * Starts the time of the first phase
+     *
+     * @param repulsionPairs
+     *            see {@link IterationStatistics#getRepulsionPairs()}
+     */
+    void startIteration(long repulsionPairs) {
+        this.repulsionPairs = repulsionPairs;
+        Arrays.fill(forceSquared, 0);
+        Arrays.fill(nanos, 0);
+        phaseStart = System.nanoTime();
+    }
+
+    /**
+     * Adds the time since the last phase ended to phase
+     */
+    void endPhase(int phase) {
+        long now = System.nanoTime();
+        nanos[phase] += now - phaseStart;
+        phaseStart = now;
+    }
+
+    /**
+     * Records the length of the force on node before it was limited, different nodes can be recorded concurrently
+     */
+    void recordForce(int node, double force) {
+        forceSquared[node] = force * force;
+    }
+
+    /**
+     * Reports the iteration to the listener, convergence has to be finished for the iteration already
+     */
+    void finishIteration(int iteration, ConvergenceMonitor convergence, double temperature) {
+        double energy = 0;
+        for (double value : forceSquared) {
+            energy += value;
+        }
+        int nodeCount = forceSquared.length;
+        listener.iterationFinished(new IterationStatistics(iteration, nodeCount, energy,
+                convergence.getMaxDisplacement(), nodeCount == 0 ? 0 : convergence.getTotalDisplacement() / nodeCount,
+                temperature, repulsionPairs, nanos[REPULSION], nanos[ATTRACTION], nanos[MOVEMENT], nanos[GRID]));
+    }
+
+}
@@ -0,0 +1,78 @@
+package de.webtowb.agd.s2.layouts;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.eclipse.elk.core.util.BasicProgressMonitor;
+import org.eclipse.elk.graph.ElkNode;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import de.webtwob.adg.s2.layouts.options.FruchtermanReingoldOptions;
+
+/**
+ * Checks that the iterations on a primitive array state do not allocate per node or per pair of nodes.
+ *
+ * The bytes allocated by the current thread are measured for a short and a long serial layout of the same graph, the
+ * difference is what the additional iterations allocate. Loading the state and writing it back costs the same in
+ * both and cancels out. Only the progress monitor of each iteration may allocate, allocating a single object per node
+ * would already exceed the bound.
+ */
+public class AllocationTest {
+
+    private static final int NODES = 2000;
+    private static final int SHORT_RUN = 20;
+    private static final int LONG_RUN = 220;
+    private static final long MAX_BYTES_PER_ITERATION = 4096;
+
+    private final ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void gridIterationsDoNotAllocate() {
+        assertIterationsDoNotAllocate(RepulsionEnum.RADIUS2K);
+        assertIterationsDoNotAllocate(RepulsionEnum.GRID3X3);
+        assertIterationsDoNotAllocate(RepulsionEnum.SAMPLED);
+    }
+
+    @Test
+    public void barnesHutIterationsDoNotAllocate() {
+        assertIterationsDoNotAllocate(RepulsionEnum.BARNES_HUT);
+    }
+
+    private void assertIterationsDoNotAllocate(RepulsionEnum mode) {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // let the JIT compile the iteration before measuring
+        allocatedBytes(mode, LONG_RUN);
+        allocatedBytes(mode, SHORT_RUN);
+
+        long perIteration = (allocatedBytes(mode, LONG_RUN) - allocatedBytes(mode, SHORT_RUN))
+                / (LONG_RUN - SHORT_RUN);
+        assertTrue(mode + " allocated " + perIteration + " bytes per iteration",
+                perIteration <= MAX_BYTES_PER_ITERATION);
+    }
+
+    /**
+     * @return the bytes the current thread allocated while laying out the test graph in iterations iterations
+     */
+    private long allocatedBytes(RepulsionEnum mode, int iterations) {
+        ElkNode graph = TestGraphs.randomGraph(NODES, NODES / 2, 7);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_PRIMITIVE_STATE, true);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_PARALLEL, false);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_REPULSION_MODE, mode);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_ITERATIONS, iterations);
+
+        FruchtermanReingoldLayoutProvider provider = new FruchtermanReingoldLayoutProvider();
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        provider.layout(graph, new BasicProgressMonitor());
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        provider.dispose();
+        return allocated;
+    }
+
+}
@@ -0,0 +1,139 @@
+package de.webtowb.agd.s2.layouts;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.eclipse.elk.core.util.BasicProgressMonitor;
+import org.eclipse.elk.graph.ElkEdge;
+import org.eclipse.elk.graph.ElkNode;
+import org.junit.Test;
+
+import de.webtwob.adg.s2.layouts.options.FruchtermanReingoldOptions;
+
+/**
+ * Compares the float precision of the blocked repulsion with the double precision it replaces.
+ *
+ * Rounding the forces changes the path of every later iteration, so after a full layout the positions are not
+ * comparable one by one, only the quality of the layouts is. Single iterations and the kernel itself are compared
+ * position by position.
+ */
+public class FloatPrecisionTest {
+
+    private static final int NODES = 1000;
+
+    /**
+     * the largest distance between a node placed by the double and by the float layout after one iteration, in a frame
+     * of 1000 x 1000
+     */
+    private static final double ONE_ITERATION_TOLERANCE = 0.1;
+
+    /**
+     * the largest relative difference between the repulsion of a node summed up in double and in float precision
+     */
+    private static final double KERNEL_TOLERANCE = 1e-4;
+
+    /**
+     * the largest relative difference of the ratio of the mean edge length to the mean distance of all pairs of nodes
+     */
+    private static final double QUALITY_TOLERANCE = 0.05;
+
+    @Test
+    public void oneIterationMovesNodesAlike() {
+        for (RepulsionEnum mode : new RepulsionEnum[] { RepulsionEnum.RADIUS2K, RepulsionEnum.REPULSE_ALL }) {
+            List<ElkNode> inDouble = layout(mode, false, 1).getChildren();
+            List<ElkNode> inFloat = layout(mode, true, 1).getChildren();
+            double max = 0;
+            for (int i = 0; i < NODES; i++) {
+                max = Math.max(max, Math.hypot(inDouble.get(i).getX() - inFloat.get(i).getX(),
+                        inDouble.get(i).getY() - inFloat.get(i).getY()));
+            }
+            assertTrue(mode + " moved a node " + max + " apart", max <= ONE_ITERATION_TOLERANCE);
+        }
+    }
+
+    @Test
+    public void kernelsAgree() {
+        SplittableRandom random = new SplittableRandom(7);
+        double[] xs = new double[NODES];
+        double[] ys = new double[NODES];
+        float[] floatXs = new float[NODES];
+        float[] floatYs = new float[NODES];
+        for (int i = 0; i < NODES; i++) {
+            xs[i] = random.nextDouble() * 1000;
+            ys[i] = random.nextDouble() * 1000;
+            floatXs[i] = (float) xs[i];
+            floatYs[i] = (float) ys[i];
+        }
+        // one node on top of another to check that both count coincident positions alike
+        xs[1] = xs[0];
+        ys[1] = ys[0];
+        floatXs[1] = floatXs[0];
+        floatYs[1] = floatYs[0];
+
+        double scale = 1000.0 * 1000 / NODES;
+        double[] dispX = new double[NODES];
+        double[] dispY = new double[NODES];
+        double[] floatDispX = new double[NODES];
+        double[] floatDispY = new double[NODES];
+        for (int node = 0; node < NODES; node++) {
+            int coincident = RepulsionKernel.accumulate(xs[node], ys[node], xs, ys, 0, NODES, scale,
+                    Double.POSITIVE_INFINITY, dispX, dispY, node);
+            int floatCoincident = RepulsionKernel.accumulate(floatXs[node], floatYs[node], floatXs, floatYs, 0,
+                    NODES, (float) scale, Float.POSITIVE_INFINITY, floatDispX, floatDispY, node);
+            assertEquals("coincident positions of " + node, coincident, floatCoincident);
+
+            double error = Math.hypot(floatDispX[node] - dispX[node], floatDispY[node] - dispY[node]);
+            double length = Math.hypot(dispX[node], dispY[node]);
+            assertTrue("relative error " + error / length + " of " + node, error <= KERNEL_TOLERANCE * length);
+        }
+    }
+
+    @Test
+    public void fullLayoutKeepsQuality() {
+        for (RepulsionEnum mode : new RepulsionEnum[] { RepulsionEnum.RADIUS2K, RepulsionEnum.REPULSE_ALL }) {
+            double inDouble = edgeToPairRatio(layout(mode, false, 50));
+            double inFloat = edgeToPairRatio(layout(mode, true, 50));
+            assertEquals(mode + " ratio", inDouble, inFloat, QUALITY_TOLERANCE * inDouble);
+        }
+    }
+
+    private static ElkNode layout(RepulsionEnum mode, boolean floatPrecision, int iterations) {
+        ElkNode graph = TestGraphs.randomGraph(NODES, NODES / 2, 7);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_PRIMITIVE_STATE, true);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_BLOCKED_REPULSION, true);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_FLOAT_PRECISION, floatPrecision);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_REPULSION_MODE, mode);
+        graph.setProperty(FruchtermanReingoldOptions.SETTINGS_ITERATIONS, iterations);
+        FruchtermanReingoldLayoutProvider provider = new FruchtermanReingoldLayoutProvider();
+        provider.layout(graph, new BasicProgressMonitor());
+        provider.dispose();
+        return graph;
+    }
+
+    /**
+     * @return the mean edge length divided by the mean distance of all pairs of nodes, smaller for layouts that keep
+     *         neighbours closer together than the rest
+     */
+    private static double edgeToPairRatio(ElkNode graph) {
+        double edges = 0;
+        for (ElkEdge edge : graph.getContainedEdges()) {
+            ElkNode source = (ElkNode) edge.getSources().get(0);
+            ElkNode target = (ElkNode) edge.getTargets().get(0);
+            edges += Math.hypot(source.getX() - target.getX(), source.getY() - target.getY());
+        }
+        List<ElkNode> nodes = graph.getChildren();
+        double pairs = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            for (int j = i + 1; j < nodes.size(); j++) {
+                pairs += Math.hypot(nodes.get(i).getX() - nodes.get(j).getX(),
+                        nodes.get(i).getY() - nodes.get(j).getY());
+            }
+        }
+        double pairCount = nodes.size() * (nodes.size() - 1) / 2.0;
+        return edges / graph.getContainedEdges().size() / (pairs / pairCount);
+    }
+
+}
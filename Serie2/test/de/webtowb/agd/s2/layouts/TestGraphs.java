@@ -0,0 +1,41 @@
+package de.webtowb.agd.s2.layouts;
+
+import java.util.SplittableRandom;
+
+import org.eclipse.elk.graph.ElkNode;
+import org.eclipse.elk.graph.util.ElkGraphUtil;
+
+/**
+ * Builds the graphs the tests lay out
+ */
+final class TestGraphs {
+
+    private TestGraphs() {
+    }
+
+    /**
+     * @return a random tree on nodeCount nodes of size 10 x 10 with extraEdges more random edges, the same for the
+     *         same seed
+     */
+    static ElkNode randomGraph(int nodeCount, int extraEdges, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        ElkNode graph = ElkGraphUtil.createGraph();
+        ElkNode[] nodes = new ElkNode[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            nodes[i] = ElkGraphUtil.createNode(graph);
+            nodes[i].setDimensions(10, 10);
+        }
+        for (int i = 1; i < nodeCount; i++) {
+            ElkGraphUtil.createSimpleEdge(nodes[random.nextInt(i)], nodes[i]);
+        }
+        for (int i = 0; i < extraEdges; i++) {
+            int source = random.nextInt(nodeCount);
+            int target = random.nextInt(nodeCount);
+            if (source != target) {
+                ElkGraphUtil.createSimpleEdge(nodes[source], nodes[target]);
+            }
+        }
+        return graph;
+    }
+
+}